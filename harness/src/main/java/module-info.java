@@ -0,0 +1,5 @@
+module net.gudenau.hidapi.harness {
+    requires jdk.incubator.foreign;
+    requires java.management;
+    requires net.gudenau.hidapi;
+}
@@ -0,0 +1,117 @@
+package net.gudenau.hid.harness;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear latency histogram in the style of HdrHistogram.
+ * <p>
+ * Values are bucketed with a relative error of less than 1% up to
+ * {@link #MAX_VALUE} nanoseconds, larger values are clamped. Recording is a
+ * single atomic increment so any thread can record while another thread
+ * drains the histogram.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    
+    /**
+     * The largest value that can be recorded, a little over 18 minutes.
+     */
+    static final long MAX_VALUE = (1L << 40) - 1;
+    
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    
+    private static int index(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        var shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >>> shift) - SUB_BUCKET_HALF);
+    }
+    
+    /**
+     * Gets the highest value that is counted in a bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        var bucket = index - SUB_BUCKET_COUNT;
+        var shift = bucket / SUB_BUCKET_HALF + 1;
+        var sub = (long) (bucket % SUB_BUCKET_HALF + SUB_BUCKET_HALF);
+        return ((sub + 1) << shift) - 1;
+    }
+    
+    void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, Math.min(nanos, MAX_VALUE))));
+    }
+    
+    /**
+     * Moves every value from this histogram into another one.
+     */
+    void drainInto(LatencyHistogram target) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) != 0) {
+                target.counts.addAndGet(i, counts.getAndSet(i, 0));
+            }
+        }
+    }
+    
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            var count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+    
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+    
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+    
+    long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Gets the value at a percentile.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The value or 0 if the histogram is empty
+     */
+    long percentile(double percentile) {
+        var total = count();
+        if (total == 0) {
+            return 0;
+        }
+        
+        var target = Math.max(1, (long) Math.ceil(total * (percentile / 100)));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return highestValue(i);
+            }
+        }
+        return max();
+    }
+}
@@ -0,0 +1,52 @@
+package net.gudenau.hid.harness;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A snapshot of the process wide numbers the harness tracks over time.
+ *
+ * @param gcCount     Total garbage collections
+ * @param gcTime      Total time spent in garbage collections in milliseconds
+ * @param heapUsed    Used heap in bytes
+ * @param directUsed  Used direct and mapped buffer memory in bytes
+ * @param residentSet Resident set size of the process in bytes, or -1 if unknown
+ */
+record ProcessStats(long gcCount, long gcTime, long heapUsed, long directUsed, long residentSet) {
+    private static final Path STATUS = Path.of("/proc/self/status");
+    
+    static ProcessStats capture() {
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, bean.getCollectionCount());
+            gcTime += Math.max(0, bean.getCollectionTime());
+        }
+        
+        long directUsed = 0;
+        for (BufferPoolMXBean bean : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            directUsed += Math.max(0, bean.getMemoryUsed());
+        }
+        
+        var heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        return new ProcessStats(gcCount, gcTime, heapUsed, directUsed, readResidentSet());
+    }
+    
+    private static long readResidentSet() {
+        try {
+            for (var line : Files.readAllLines(STATUS)) {
+                if (line.startsWith("VmRSS:")) {
+                    var value = line.substring(6).trim();
+                    return Long.parseLong(value.substring(0, value.indexOf(' '))) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // Not on Linux, or a format we don't understand.
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,76 @@
+package net.gudenau.hid.harness;
+
+import java.time.Duration;
+
+/**
+ * The settings for a soak run.
+ *
+ * @param devices    The amount of simulated devices
+ * @param inputRate  The input reports per second sent by each device
+ * @param outputRate The output reports per second written to each device, 0 disables writes
+ * @param reportSize The size of every report in bytes, at least 8 for the timestamp
+ * @param duration   How long to run for
+ * @param interval   How often to print statistics
+ * @param maxP999    The p99.9 latency that fails the run, or null to never fail
+ */
+record SoakConfig(int devices, int inputRate, int outputRate, int reportSize, Duration duration, Duration interval, Duration maxP999) {
+    static final String USAGE = """
+        Usage: SoakHarness [options]
+          --devices <n>        Simulated devices to drive (default 4)
+          --input-rate <n>     Input reports per second per device (default 1000)
+          --output-rate <n>    Output reports per second per device, 0 to disable (default 100)
+          --report-size <n>    Report size in bytes, 8 to 1024 (default 64)
+          --duration <time>    How long to run, ISO-8601 or seconds (default PT1M)
+          --interval <time>    How often to print statistics (default PT10S)
+          --max-p999-us <n>    Exit with 1 if the read or write p99.9 exceeds this
+        """;
+    
+    SoakConfig {
+        if (devices < 1) {
+            throw new IllegalArgumentException("devices must be positive");
+        }
+        if (inputRate < 1 || outputRate < 0) {
+            throw new IllegalArgumentException("rates must be positive");
+        }
+        if (reportSize < Long.BYTES || reportSize > 1024) {
+            throw new IllegalArgumentException("report size must be between 8 and 1024");
+        }
+        if (duration.isNegative() || interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("duration and interval must be positive");
+        }
+    }
+    
+    static SoakConfig parse(String[] args) {
+        int devices = 4;
+        int inputRate = 1000;
+        int outputRate = 100;
+        int reportSize = 64;
+        Duration duration = Duration.ofMinutes(1);
+        Duration interval = Duration.ofSeconds(10);
+        Duration maxP999 = null;
+        
+        for (int i = 0; i < args.length; i++) {
+            var option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            var value = args[++i];
+            switch (option) {
+                case "--devices" -> devices = Integer.parseInt(value);
+                case "--input-rate" -> inputRate = Integer.parseInt(value);
+                case "--output-rate" -> outputRate = Integer.parseInt(value);
+                case "--report-size" -> reportSize = Integer.parseInt(value);
+                case "--duration" -> duration = duration(value);
+                case "--interval" -> interval = duration(value);
+                case "--max-p999-us" -> maxP999 = Duration.ofNanos(Long.parseLong(value) * 1000);
+                default -> throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        
+        return new SoakConfig(devices, inputRate, outputRate, reportSize, duration, interval, maxP999);
+    }
+    
+    private static Duration duration(String value) {
+        return value.startsWith("P") ? Duration.parse(value) : Duration.ofSeconds(Long.parseLong(value));
+    }
+}
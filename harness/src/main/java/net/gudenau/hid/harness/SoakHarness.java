@@ -0,0 +1,348 @@
+package net.gudenau.hid.harness;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import jdk.incubator.foreign.ValueLayout;
+import net.gudenau.hid.HidApi;
+import net.gudenau.hid.HidBulkOpen;
+import net.gudenau.hid.HidDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives simulated devices through the hidapi read and write paths for a
+ * long time and records latency, throughput and process health.
+ * <p>
+ * Every report carries the System.nanoTime() of when it was sent in its
+ * first 8 bytes, read latency is measured from the simulated device sending
+ * an input report to hid_read() returning it and write latency from calling
+ * hid_write() to the simulated device receiving the output report.
+ * <p>
+ * Simulated devices are created with uhid, so this needs write access to
+ * /dev/uhid and the hidraw nodes it creates, and a hidraw build of libhid.so
+ * in the working directory.
+ */
+public final class SoakHarness {
+    private static final int VENDOR_ID = 0x1209;
+    private static final int PRODUCT_ID = 0x0001;
+    private static final int READ_TIMEOUT = 100;
+    
+    private static final ValueLayout.OfLong TIMESTAMP = ValueLayout.JAVA_LONG
+        .withBitAlignment(8)
+        .withOrder(ByteOrder.LITTLE_ENDIAN);
+    
+    private final SoakConfig config;
+    private final List<Device> devices = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final LongAdder errors = new LongAdder();
+    
+    private volatile boolean running = true;
+    
+    private SoakHarness(SoakConfig config) {
+        this.config = config;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        SoakConfig config;
+        try {
+            config = SoakConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(SoakConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+        
+        System.exit(new SoakHarness(config).run() ? 0 : 1);
+    }
+    
+    private final class Device {
+        final String serial;
+        final UhidDevice simulated;
+        final LatencyHistogram readLatency = new LatencyHistogram();
+        final LatencyHistogram writeLatency = new LatencyHistogram();
+        final LongAdder reads = new LongAdder();
+        final LongAdder writes = new LongAdder();
+        HidDevice handle;
+        
+        Device(int index) throws IOException {
+            serial = "soak-" + index;
+            simulated = new UhidDevice("HID soak device " + index, serial, VENDOR_ID, PRODUCT_ID, config.reportSize(), this::output);
+        }
+        
+        private void output(ByteBuffer report) {
+            // hidraw may or may not pass the report ID through for unnumbered reports.
+            var offset = report.remaining() > config.reportSize() ? 1 : 0;
+            if (report.remaining() >= offset + Long.BYTES) {
+                writeLatency.record(System.nanoTime() - report.getLong(offset));
+            }
+        }
+        
+        void inputLoop() {
+            var report = ByteBuffer.allocateDirect(config.reportSize()).order(ByteOrder.LITTLE_ENDIAN);
+            var period = 1_000_000_000L / config.inputRate();
+            var start = System.nanoTime();
+            try {
+                for (long sequence = 0; running; sequence++) {
+                    pace(start, sequence, period);
+                    report.clear();
+                    report.putLong(0, System.nanoTime());
+                    simulated.input(report);
+                }
+            } catch (IOException e) {
+                fail("Failed to send input report to " + serial, e);
+            }
+        }
+        
+        void readLoop() {
+            try (var scope = ResourceScope.newConfinedScope()) {
+                var buffer = MemorySegment.allocateNative(config.reportSize(), 8, scope);
+                while (running) {
+                    var result = HidApi.hid_read_timeout(handle, buffer, READ_TIMEOUT);
+                    var now = System.nanoTime();
+                    if (result < 0) {
+                        fail("hid_read_timeout failed on " + serial + ": " + HidApi.hid_error(handle), null);
+                        return;
+                    }
+                    if (result >= Long.BYTES) {
+                        readLatency.record(now - buffer.get(TIMESTAMP, 0));
+                        reads.increment();
+                    }
+                }
+            }
+        }
+        
+        void writeLoop() {
+            try (var scope = ResourceScope.newConfinedScope()) {
+                var buffer = MemorySegment.allocateNative(config.reportSize() + 1, 8, scope);
+                buffer.set(ValueLayout.JAVA_BYTE, 0, (byte) 0);
+                var period = 1_000_000_000L / config.outputRate();
+                var start = System.nanoTime();
+                for (long sequence = 0; running; sequence++) {
+                    pace(start, sequence, period);
+                    buffer.set(TIMESTAMP, 1, System.nanoTime());
+                    if (HidApi.hid_write(handle, buffer) < 0) {
+                        fail("hid_write failed on " + serial + ": " + HidApi.hid_error(handle), null);
+                        return;
+                    }
+                    writes.increment();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits for the next slot of a fixed rate schedule. A loop that falls
+     * behind catches up without waiting instead of slipping the schedule.
+     */
+    private void pace(long start, long sequence, long period) {
+        var wait = start + sequence * period - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+    
+    private void fail(String message, Throwable cause) {
+        errors.increment();
+        if (running) {
+            System.err.println(message);
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+        }
+    }
+    
+    private boolean run() throws Exception {
+        if (HidApi.hid_init_once() != 0) {
+            throw new IllegalStateException("Failed to initialize hidapi");
+        }
+        
+        try {
+            for (int i = 0; i < config.devices(); i++) {
+                devices.add(new Device(i));
+            }
+            open();
+            return soak();
+        } finally {
+            // Nothing may still be reading from a handle when it gets closed.
+            running = false;
+            for (var thread : threads) {
+                thread.join();
+            }
+            for (var device : devices) {
+                if (device.handle != null) {
+                    HidApi.hid_close(device.handle);
+                }
+                device.simulated.close();
+            }
+            HidApi.hid_exit();
+        }
+    }
+    
+    private void open() throws InterruptedException {
+        // The kernel creates the hidraw nodes asynchronously.
+        var paths = new HashMap<String, String>();
+        var deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (paths.size() < devices.size()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Only " + paths.size() + " of " + devices.size() + " simulated devices appeared");
+            }
+            Thread.sleep(50);
+            
+            paths.clear();
+            var list = HidApi.hid_enumerate(VENDOR_ID, PRODUCT_ID);
+            if (list != null) {
+                try {
+                    for (var info = list; info != null; info = info.next()) {
+                        var serial = info.serial_numberString();
+                        if (serial != null) {
+                            paths.put(serial, info.pathString());
+                        }
+                    }
+                } finally {
+                    HidApi.hid_free_enumeration(list);
+                }
+            }
+            paths.keySet().retainAll(devices.stream().map((device) -> device.serial).toList());
+        }
+        
+        var ordered = devices.stream().map((device) -> paths.get(device.serial)).toList();
+        var results = HidBulkOpen.openPaths(ordered, 16, Duration.ofSeconds(10));
+        for (int i = 0; i < results.size(); i++) {
+            var result = results.get(i);
+            if (!result.success()) {
+                throw new IllegalStateException("Failed to open " + result.path() + ": " + result.error());
+            }
+            devices.get(i).handle = result.device();
+        }
+    }
+    
+    private boolean soak() throws InterruptedException {
+        for (var device : devices) {
+            threads.add(new Thread(device::readLoop, "soak-read-" + device.serial));
+            threads.add(new Thread(device::inputLoop, "soak-input-" + device.serial));
+            if (config.outputRate() > 0) {
+                threads.add(new Thread(device::writeLoop, "soak-write-" + device.serial));
+            }
+        }
+        for (var thread : threads) {
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((crashed, cause) -> fail(crashed.getName() + " crashed", cause));
+            thread.start();
+        }
+        
+        System.out.printf(
+            "Soaking %d device(s), %d in/s and %d out/s each, %d byte reports, for %s%n",
+            devices.size(), config.inputRate(), config.outputRate(), config.reportSize(), config.duration()
+        );
+        System.out.println("elapsed  reads/s writes/s | read p50/p99/p999/max (us)     | write p50/p99/p999/max (us)    | gc n/ms | heap MiB | direct MiB | rss MiB (+growth)");
+        
+        var totalRead = new LatencyHistogram();
+        var totalWrite = new LatencyHistogram();
+        var intervalRead = new LatencyHistogram();
+        var intervalWrite = new LatencyHistogram();
+        
+        var baseline = ProcessStats.capture();
+        var previous = baseline;
+        long previousReads = 0;
+        long previousWrites = 0;
+        
+        var start = System.nanoTime();
+        var end = start + config.duration().toNanos();
+        var intervalNanos = config.interval().toNanos();
+        var last = start;
+        while (last < end) {
+            var next = Math.min(end, last + intervalNanos);
+            Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+            var now = System.nanoTime();
+            
+            long reads = 0;
+            long writes = 0;
+            intervalRead.reset();
+            intervalWrite.reset();
+            for (var device : devices) {
+                device.readLatency.drainInto(intervalRead);
+                device.writeLatency.drainInto(intervalWrite);
+                reads += device.reads.sum();
+                writes += device.writes.sum();
+            }
+            totalRead.add(intervalRead);
+            totalWrite.add(intervalWrite);
+            
+            var stats = ProcessStats.capture();
+            var seconds = (now - last) / 1e9;
+            System.out.printf(
+                "%6.0fs %8.0f %8.0f | %s | %s | %3d/%-4d | %8.1f | %10.1f | %7.1f (%+.1f)%n",
+                (now - start) / 1e9,
+                (reads - previousReads) / seconds,
+                (writes - previousWrites) / seconds,
+                latencies(intervalRead),
+                latencies(intervalWrite),
+                stats.gcCount() - previous.gcCount(),
+                stats.gcTime() - previous.gcTime(),
+                mib(stats.heapUsed()),
+                mib(stats.directUsed()),
+                mib(stats.residentSet()),
+                mib(stats.residentSet() - baseline.residentSet())
+            );
+            
+            previous = stats;
+            previousReads = reads;
+            previousWrites = writes;
+            last = now;
+        }
+        running = false;
+        
+        var elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println();
+        System.out.printf("Total: %d reads (%.0f/s), %d writes (%.0f/s), %d error(s)%n",
+            totalRead.count(), totalRead.count() / elapsed,
+            totalWrite.count(), totalWrite.count() / elapsed,
+            errors.sum()
+        );
+        System.out.printf("Read  latency p50/p99/p999/max (us): %s%n", latencies(totalRead));
+        System.out.printf("Write latency p50/p99/p999/max (us): %s%n", latencies(totalWrite));
+        System.out.printf("GC: %d collection(s), %d ms%n", previous.gcCount() - baseline.gcCount(), previous.gcTime() - baseline.gcTime());
+        System.out.printf("RSS growth: %+.1f MiB%n", mib(previous.residentSet() - baseline.residentSet()));
+        
+        var passed = errors.sum() == 0;
+        // An empty histogram reports 0 for every percentile, so a run where nothing got through would pass the latency gate.
+        if (totalRead.count() == 0) {
+            System.out.println("FAILED: no input reports were read");
+            passed = false;
+        }
+        if (config.outputRate() > 0 && totalWrite.count() == 0) {
+            System.out.println("FAILED: no output reports were received");
+            passed = false;
+        }
+        if (config.maxP999() != null) {
+            var limit = config.maxP999().toNanos();
+            if (totalRead.percentile(99.9) > limit || totalWrite.percentile(99.9) > limit) {
+                System.out.println("FAILED: p99.9 latency exceeded " + config.maxP999().toNanos() / 1000 + " us");
+                passed = false;
+            }
+        }
+        return passed;
+    }
+    
+    private static String latencies(LatencyHistogram histogram) {
+        return "%6.1f %7.1f %7.1f %7.1f".formatted(
+            histogram.percentile(50) / 1e3,
+            histogram.percentile(99) / 1e3,
+            histogram.percentile(99.9) / 1e3,
+            histogram.max() / 1e3
+        );
+    }
+    
+    private static double mib(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
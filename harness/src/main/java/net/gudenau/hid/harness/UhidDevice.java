@@ -0,0 +1,197 @@
+package net.gudenau.hid.harness;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * A simulated HID device backed by the Linux uhid driver.
+ * <p>
+ * The kernel exposes the device as a regular hidraw node, so the host side
+ * of the harness goes through the exact same hidapi paths it would with real
+ * hardware. The device has a single vendor defined input and output report
+ * without a report ID.
+ */
+final class UhidDevice implements AutoCloseable {
+    private static final Path UHID = Path.of("/dev/uhid");
+    
+    private static final int UHID_DESTROY = 1;
+    private static final int UHID_OUTPUT = 6;
+    private static final int UHID_GET_REPORT = 9;
+    private static final int UHID_GET_REPORT_REPLY = 10;
+    private static final int UHID_CREATE2 = 11;
+    private static final int UHID_INPUT2 = 12;
+    private static final int UHID_SET_REPORT = 13;
+    private static final int UHID_SET_REPORT_REPLY = 14;
+    
+    private static final int BUS_USB = 0x03;
+    private static final int EIO = 5;
+    
+    /**
+     * sizeof(struct uhid_event)
+     */
+    private static final int EVENT_SIZE = 4380;
+    private static final int DATA_MAX = 4096;
+    
+    private final FileChannel channel;
+    private final int reportSize;
+    private final ByteBuffer input;
+    
+    /**
+     * Creates a new device.
+     *
+     * @param name       The product name of the device
+     * @param serial     The serial number of the device, used to find it again
+     * @param vendor     The vendor ID of the device
+     * @param product    The product ID of the device
+     * @param reportSize The size of the input and output reports in bytes
+     * @param output     Called with every output report the host writes,
+     *                   the buffer is only valid during the call
+     */
+    UhidDevice(String name, String serial, int vendor, int product, int reportSize, Consumer<ByteBuffer> output) throws IOException {
+        if (reportSize < 1 || reportSize > 1024) {
+            throw new IllegalArgumentException("reportSize must be between 1 and 1024");
+        }
+        this.reportSize = reportSize;
+        
+        channel = FileChannel.open(UHID, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            var descriptor = descriptor(reportSize);
+            var event = ByteBuffer.allocate(EVENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            event.putInt(UHID_CREATE2);
+            putString(event, name, 128);
+            putString(event, "", 64);
+            putString(event, serial, 64);
+            event.putShort((short) descriptor.length);
+            event.putShort((short) BUS_USB);
+            event.putInt(vendor);
+            event.putInt(product);
+            event.putInt(0);
+            event.putInt(0);
+            event.put(descriptor);
+            event.clear();
+            write(event);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        
+        input = ByteBuffer.allocateDirect(6 + reportSize).order(ByteOrder.LITTLE_ENDIAN);
+        
+        var eventThread = new Thread(() -> handleEvents(output), "uhid-" + serial);
+        eventThread.setDaemon(true);
+        eventThread.start();
+    }
+    
+    private static void putString(ByteBuffer buffer, String string, int length) {
+        var bytes = string.getBytes(StandardCharsets.UTF_8);
+        var start = buffer.position();
+        buffer.put(bytes, 0, Math.min(bytes.length, length - 1));
+        buffer.position(start + length);
+    }
+    
+    private static byte[] descriptor(int reportSize) {
+        var low = (byte) reportSize;
+        var high = (byte) (reportSize >> 8);
+        return new byte[]{
+            0x06, 0x00, (byte) 0xFF, // Usage Page (Vendor Defined 0xFF00)
+            0x09, 0x01, // Usage (0x01)
+            (byte) 0xA1, 0x01, // Collection (Application)
+            0x15, 0x00, //   Logical Minimum (0)
+            0x26, (byte) 0xFF, 0x00, //   Logical Maximum (255)
+            0x75, 0x08, //   Report Size (8)
+            (byte) 0x96, low, high, //   Report Count (reportSize)
+            0x09, 0x01, //   Usage (0x01)
+            (byte) 0x81, 0x02, //   Input (Data,Var,Abs)
+            (byte) 0x96, low, high, //   Report Count (reportSize)
+            0x09, 0x01, //   Usage (0x01)
+            (byte) 0x91, 0x02, //   Output (Data,Var,Abs)
+            (byte) 0xC0, // End Collection
+        };
+    }
+    
+    private void write(ByteBuffer event) throws IOException {
+        while (event.hasRemaining()) {
+            channel.write(event);
+        }
+    }
+    
+    /**
+     * Sends an input report to the host, only one thread may call this.
+     *
+     * @param report The report, must be exactly the report size
+     */
+    void input(ByteBuffer report) throws IOException {
+        if (report.remaining() != reportSize) {
+            throw new IllegalArgumentException("Report must be " + reportSize + " bytes");
+        }
+        
+        input.clear();
+        input.putInt(UHID_INPUT2);
+        input.putShort((short) reportSize);
+        input.put(report);
+        input.flip();
+        write(input);
+    }
+    
+    private void handleEvents(Consumer<ByteBuffer> output) {
+        var event = ByteBuffer.allocateDirect(EVENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        var reply = ByteBuffer.allocateDirect(EVENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (true) {
+                event.clear();
+                if (channel.read(event) < 4) {
+                    continue;
+                }
+                
+                switch (event.getInt(0)) {
+                    case UHID_OUTPUT -> {
+                        var size = Short.toUnsignedInt(event.getShort(4 + DATA_MAX));
+                        output.accept(event.slice(4, Math.min(size, DATA_MAX)).order(ByteOrder.LITTLE_ENDIAN));
+                    }
+                    // Nothing in the harness uses these, but the host blocks until they are answered.
+                    case UHID_GET_REPORT -> {
+                        reply.clear();
+                        reply.putInt(UHID_GET_REPORT_REPLY);
+                        reply.putInt(event.getInt(4));
+                        reply.putShort((short) EIO);
+                        reply.putShort((short) 0);
+                        reply.flip();
+                        write(reply);
+                    }
+                    case UHID_SET_REPORT -> {
+                        reply.clear();
+                        reply.putInt(UHID_SET_REPORT_REPLY);
+                        reply.putInt(event.getInt(4));
+                        reply.putShort((short) EIO);
+                        reply.flip();
+                        write(reply);
+                    }
+                    default -> {}
+                }
+            }
+        } catch (ClosedChannelException ignored) {
+            // Device was destroyed
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read uhid event", e);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            var event = ByteBuffer.allocate(EVENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            event.putInt(UHID_DESTROY);
+            event.clear();
+            write(event);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,5 @@
+module net.gudenau.hidapi.processor {
+    requires java.compiler;
+    
+    provides javax.annotation.processing.Processor with net.gudenau.hid.processor.ReportProcessor;
+}
@@ -0,0 +1,497 @@
+package net.gudenau.hid.processor;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Generates report codecs for records annotated with
+ * {@code net.gudenau.hid.report.HidReport}.
+ * <p>
+ * The annotations are matched by name so this processor does not need the
+ * library, or the foreign API, on its own class path.
+ */
+@SupportedAnnotationTypes({ReportProcessor.HID_REPORT, ReportProcessor.HID_FIELD})
+public final class ReportProcessor extends AbstractProcessor {
+    static final String HID_REPORT = "net.gudenau.hid.report.HidReport";
+    static final String HID_FIELD = "net.gudenau.hid.report.HidField";
+    
+    private static final Set<String> RESERVED = Set.of("decode", "encode", "matches", "view", "segment", "wrap", "toRecord");
+    
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+    
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (var annotation : annotations) {
+            if (!annotation.getQualifiedName().contentEquals(HID_REPORT)) {
+                continue;
+            }
+            
+            for (var element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.RECORD) {
+                    error(element, "@HidReport can only be applied to records");
+                    continue;
+                }
+                
+                var report = parse((TypeElement) element);
+                if (report != null) {
+                    write(report);
+                }
+            }
+        }
+        return true;
+    }
+    
+    private Report parse(TypeElement type) {
+        var reportValues = values(annotation(type, HID_REPORT));
+        var id = (int) reportValues.getOrDefault("id", -1);
+        var size = (int) reportValues.get("size");
+        
+        var valid = true;
+        if (id < -1 || id > 0xFF) {
+            error(type, "Report ID must be between 0 and 255 or -1");
+            valid = false;
+        }
+        if (size < 1) {
+            error(type, "Report size must be positive");
+            valid = false;
+        }
+        
+        var fields = new ArrayList<Field>();
+        var used = new ArrayList<BitSet>();
+        for (var component : type.getRecordComponents()) {
+            var field = parse(component, id, size);
+            if (field == null) {
+                valid = false;
+                continue;
+            }
+            
+            // LITTLE and BIG count bits within a byte from opposite ends, so compare the bits that actually get touched.
+            var bits = bits(field);
+            for (int i = 0; i < fields.size(); i++) {
+                if (used.get(i).intersects(bits)) {
+                    error(component, "Field " + field.name() + " overlaps field " + fields.get(i).name());
+                    valid = false;
+                }
+            }
+            fields.add(field);
+            used.add(bits);
+        }
+        
+        if (!valid) {
+            return null;
+        }
+        
+        var packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        var recordName = new StringBuilder(type.getSimpleName());
+        var codecName = new StringBuilder(type.getSimpleName());
+        for (var enclosing = type.getEnclosingElement(); enclosing instanceof TypeElement outer; enclosing = outer.getEnclosingElement()) {
+            recordName.insert(0, outer.getSimpleName() + ".");
+            codecName.insert(0, outer.getSimpleName() + "_");
+        }
+        codecName.append("Codec");
+        
+        return new Report(type, packageName, recordName.toString(), codecName.toString(), id, size, fields);
+    }
+    
+    private Field parse(RecordComponentElement component, int id, int size) {
+        var name = component.getSimpleName().toString();
+        var mirror = annotation(component, HID_FIELD);
+        if (mirror == null) {
+            error(component, "Report component " + name + " is missing @HidField");
+            return null;
+        }
+        if (RESERVED.contains(name)) {
+            error(component, "Report component can not be named " + name);
+            return null;
+        }
+        
+        var values = values(mirror);
+        var offset = (int) values.get("offset");
+        var width = (int) values.get("width");
+        var signed = (boolean) values.getOrDefault("signed", false);
+        var endian = values.getOrDefault("endian", "LITTLE").toString();
+        var kind = component.asType().getKind();
+        
+        int typeWidth = switch (kind) {
+            case BOOLEAN -> 1;
+            case BYTE -> Byte.SIZE;
+            case SHORT -> Short.SIZE;
+            case INT -> Integer.SIZE;
+            case LONG -> Long.SIZE;
+            default -> 0;
+        };
+        if (typeWidth == 0) {
+            error(component, "Report component " + name + " must be a boolean, byte, short, int or long");
+            return null;
+        }
+        if (width < 1 || width > typeWidth) {
+            error(component, "Width of " + name + " must be between 1 and " + typeWidth);
+            return null;
+        }
+        if (offset < (id == -1 ? 0 : Byte.SIZE) || offset + width > size * Byte.SIZE) {
+            error(component, "Field " + name + " does not fit in the report");
+            return null;
+        }
+        if ((offset & 7) + width > Long.SIZE) {
+            error(component, "Field " + name + " spans more than 8 bytes");
+            return null;
+        }
+        
+        return new Field(name, kind, offset, width, signed, endian.endsWith("BIG"));
+    }
+    
+    private void write(Report report) {
+        var source = new StringBuilder();
+        if (!report.packageName().isEmpty()) {
+            source.append("package ").append(report.packageName()).append(";\n\n");
+        }
+        source.append("""
+            import jdk.incubator.foreign.MemorySegment;
+            import jdk.incubator.foreign.ValueLayout;
+
+            import java.nio.ByteOrder;
+
+            """);
+        source.append("/**\n * Generated codec for {@link ").append(report.recordName()).append("}, do not edit.\n */\n");
+        source.append("public final class ").append(report.codecName()).append(" {\n");
+        source.append("    private ").append(report.codecName()).append("() {}\n    \n");
+        source.append("    public static final int REPORT_ID = ").append(report.id()).append(";\n");
+        source.append("    public static final long SIZE = ").append(report.size()).append(";\n    \n");
+        
+        var layouts = new TreeSet<String>();
+        for (var field : report.fields()) {
+            var layout = layout(field);
+            if (layout != null && layout.startsWith("VALUE_")) {
+                layouts.add(layout);
+            }
+        }
+        for (var layout : layouts) {
+            var width = Integer.parseInt(layout.substring(6, layout.length() - 3));
+            var type = switch (width) {
+                case 16 -> "Short";
+                case 32 -> "Int";
+                default -> "Long";
+            };
+            source.append("    private static final ValueLayout.Of").append(type).append(' ').append(layout)
+                .append(" = ValueLayout.JAVA_").append(type.toUpperCase(Locale.ROOT))
+                .append(".withBitAlignment(8).withOrder(ByteOrder.")
+                .append(layout.endsWith("_BE") ? "BIG_ENDIAN" : "LITTLE_ENDIAN").append(");\n");
+        }
+        if (!layouts.isEmpty()) {
+            source.append("    \n");
+        }
+        
+        writeRecordMethods(source, report);
+        for (var field : report.fields()) {
+            writeGetter(source, field);
+            writeSetter(source, field);
+        }
+        writeView(source, report);
+        source.append("}\n");
+        
+        var name = report.packageName().isEmpty() ? report.codecName() : report.packageName() + '.' + report.codecName();
+        try (Writer writer = processingEnv.getFiler().createSourceFile(name, report.type()).openWriter()) {
+            writer.write(source.toString());
+        } catch (IOException e) {
+            error(report.type(), "Failed to write " + name + ": " + e.getMessage());
+        }
+    }
+    
+    private void writeRecordMethods(StringBuilder source, Report report) {
+        var record = report.recordName();
+        
+        source.append("    public static boolean matches(MemorySegment segment) {\n");
+        if (report.id() == -1) {
+            source.append("        return segment.byteSize() >= SIZE;\n");
+        } else {
+            source.append("        return segment.byteSize() >= SIZE && segment.get(ValueLayout.JAVA_BYTE, 0) == (byte) REPORT_ID;\n");
+        }
+        source.append("    }\n    \n");
+        
+        source.append("    public static ").append(record).append(" decode(MemorySegment segment) {\n");
+        source.append("        return new ").append(record).append('(');
+        var first = true;
+        for (var field : report.fields()) {
+            if (!first) {
+                source.append(", ");
+            }
+            first = false;
+            source.append(field.name()).append("(segment)");
+        }
+        source.append(");\n    }\n    \n");
+        
+        if (report.id() == -1) {
+            source.append("    /**\n     * This layout has no report ID byte, hid_write() needs one in front of it.\n     */\n");
+        }
+        source.append("    public static MemorySegment encode(").append(record).append(" value, MemorySegment segment) {\n");
+        if (report.id() != -1) {
+            source.append("        segment.set(ValueLayout.JAVA_BYTE, 0, (byte) REPORT_ID);\n");
+        }
+        for (var field : report.fields()) {
+            source.append("        ").append(field.name()).append("(segment, value.").append(field.name()).append("());\n");
+        }
+        source.append("        return segment;\n    }\n    \n");
+        
+        source.append("    public static View view() {\n        return new View();\n    }\n    \n");
+        source.append("    public static View view(MemorySegment segment) {\n        return new View().wrap(segment);\n    }\n    \n");
+    }
+    
+    private void writeGetter(StringBuilder source, Field field) {
+        var type = type(field.kind());
+        source.append("    public static ").append(type).append(' ').append(field.name()).append("(MemorySegment segment) {\n");
+        if (field.kind() == TypeKind.BOOLEAN) {
+            source.append("        return ").append(read(field)).append(" != 0;\n");
+        } else {
+            var read = read(field);
+            var cast = type.equals(readType(field)) ? "" : "(" + type + ") ";
+            source.append("        return ").append(cast).append(read).append(";\n");
+        }
+        source.append("    }\n    \n");
+    }
+    
+    private void writeSetter(StringBuilder source, Field field) {
+        source.append("    public static void ").append(field.name()).append("(MemorySegment segment, ").append(type(field.kind())).append(" value) {\n");
+        var value = switch (field.kind()) {
+            case BOOLEAN -> "(value ? 1L : 0L)";
+            case LONG -> "value";
+            default -> "(long) value";
+        };
+        
+        var layout = layout(field);
+        if (layout != null) {
+            var layoutType = layoutType(field.width());
+            var cast = layoutType.equals(type(field.kind())) ? "value" : "(" + layoutType + ") value";
+            source.append("        segment.set(").append(layout).append(", ").append(field.offset() >> 3)
+                .append(", ").append(cast).append(");\n");
+        } else {
+            var firstByte = field.offset() >> 3;
+            var span = ((field.offset() + field.width() - 1) >> 3) - firstByte + 1;
+            var shift = shift(field, span);
+            var mask = mask(field.width());
+            
+            source.append("        long bits = (").append(value).append(" & ").append(hex(mask)).append(")");
+            if (shift != 0) {
+                source.append(" << ").append(shift);
+            }
+            source.append(";\n");
+            
+            for (int i = 0; i < span; i++) {
+                var byteShift = field.big() ? (span - 1 - i) * 8 : i * 8;
+                var byteMask = (int) (((mask << shift) >>> byteShift) & 0xFF);
+                var bits = byteShift == 0 ? "bits" : "(bits >>> " + byteShift + ")";
+                source.append("        segment.set(ValueLayout.JAVA_BYTE, ").append(firstByte + i).append(", (byte) ");
+                if (byteMask == 0xFF) {
+                    source.append(bits);
+                } else {
+                    source.append("((segment.get(ValueLayout.JAVA_BYTE, ").append(firstByte + i).append(") & ")
+                        .append(String.format("0x%02X", ~byteMask & 0xFF)).append(") | (")
+                        .append(bits).append(" & ").append(String.format("0x%02X", byteMask)).append("))");
+                }
+                source.append(");\n");
+            }
+        }
+        source.append("    }\n    \n");
+    }
+    
+    private void writeView(StringBuilder source, Report report) {
+        var codec = report.codecName();
+        source.append("""
+                /**
+                 * A reusable mutable view over a report buffer, wrap a new buffer
+                 * instead of allocating a new view for every report.
+                 */
+                public static final class View {
+                    private MemorySegment segment;
+
+                    private View() {}
+
+                    public View wrap(MemorySegment segment) {
+                        this.segment = segment;
+                        return this;
+                    }
+
+                    public MemorySegment segment() {
+                        return segment;
+                    }
+
+                    public boolean matches() {
+                        return segment != null && %1$s.matches(segment);
+                    }
+
+                    public %2$s toRecord() {
+                        return %1$s.decode(segment);
+                    }
+
+                    public View encode(%2$s value) {
+                        %1$s.encode(value, segment);
+                        return this;
+                    }
+            """.formatted(codec, report.recordName()));
+        
+        for (var field : report.fields()) {
+            var type = type(field.kind());
+            var name = field.name();
+            source.append("        \n");
+            source.append("        public ").append(type).append(' ').append(name).append("() {\n");
+            source.append("            return ").append(codec).append('.').append(name).append("(segment);\n");
+            source.append("        }\n        \n");
+            source.append("        public View ").append(name).append('(').append(type).append(" value) {\n");
+            source.append("            ").append(codec).append('.').append(name).append("(segment, value);\n");
+            source.append("            return this;\n");
+            source.append("        }\n");
+        }
+        source.append("    }\n");
+    }
+    
+    /**
+     * Creates an expression that reads the raw bits of a field as a long.
+     */
+    private String read(Field field) {
+        var layout = layout(field);
+        if (layout != null) {
+            var get = "segment.get(" + layout + ", " + (field.offset() >> 3) + ")";
+            if (field.signed() || field.width() == Long.SIZE) {
+                return get;
+            }
+            return switch (field.width()) {
+                case 8 -> "Byte.toUnsignedLong(" + get + ")";
+                case 16 -> "Short.toUnsignedLong(" + get + ")";
+                default -> "Integer.toUnsignedLong(" + get + ")";
+            };
+        }
+        
+        var firstByte = field.offset() >> 3;
+        var span = ((field.offset() + field.width() - 1) >> 3) - firstByte + 1;
+        var shift = shift(field, span);
+        
+        var bytes = new StringBuilder();
+        for (int i = 0; i < span; i++) {
+            if (i != 0) {
+                bytes.append(" | ");
+            }
+            var byteShift = field.big() ? (span - 1 - i) * 8 : i * 8;
+            bytes.append("(segment.get(ValueLayout.JAVA_BYTE, ").append(firstByte + i).append(") & 0xFFL)");
+            if (byteShift != 0) {
+                bytes.append(" << ").append(byteShift);
+            }
+        }
+        
+        var raw = span == 1 ? bytes.toString() : "(" + bytes + ")";
+        if (shift != 0) {
+            raw = "(" + raw + " >>> " + shift + ")";
+        }
+        if (field.signed()) {
+            var extend = Long.SIZE - field.width();
+            return extend == 0 ? raw : "((" + raw + " << " + extend + ") >> " + extend + ")";
+        }
+        return "(" + raw + " & " + hex(mask(field.width())) + ")";
+    }
+    
+    /**
+     * Gets the layout constant for byte aligned fields that can be accessed
+     * directly, or null if the field needs to be assembled from bytes.
+     */
+    private static String layout(Field field) {
+        if ((field.offset() & 7) != 0) {
+            return null;
+        }
+        return switch (field.width()) {
+            case 8 -> "ValueLayout.JAVA_BYTE";
+            case 16, 32, 64 -> "VALUE_" + field.width() + (field.big() ? "_BE" : "_LE");
+            default -> null;
+        };
+    }
+    
+    /**
+     * Gets the type of the expression created by {@link #read(Field)}.
+     */
+    private static String readType(Field field) {
+        if (layout(field) != null && (field.signed() || field.width() == Long.SIZE)) {
+            return layoutType(field.width());
+        }
+        return "long";
+    }
+    
+    private static String layoutType(int width) {
+        return switch (width) {
+            case 8 -> "byte";
+            case 16 -> "short";
+            case 32 -> "int";
+            default -> "long";
+        };
+    }
+    
+    /**
+     * Gets the bits of the buffer a field occupies, numbered from the least
+     * significant bit of each byte.
+     */
+    private static BitSet bits(Field field) {
+        var firstByte = field.offset() >> 3;
+        var span = ((field.offset() + field.width() - 1) >> 3) - firstByte + 1;
+        var shifted = mask(field.width()) << shift(field, span);
+        
+        var bits = new BitSet();
+        for (int i = 0; i < span; i++) {
+            var byteShift = field.big() ? (span - 1 - i) * 8 : i * 8;
+            var byteMask = (int) ((shifted >>> byteShift) & 0xFF);
+            for (int bit = 0; bit < Byte.SIZE; bit++) {
+                if ((byteMask & (1 << bit)) != 0) {
+                    bits.set((firstByte + i) * Byte.SIZE + bit);
+                }
+            }
+        }
+        return bits;
+    }
+    
+    private static int shift(Field field, int span) {
+        var bit = field.offset() & 7;
+        return field.big() ? span * 8 - bit - field.width() : bit;
+    }
+    
+    private static long mask(int width) {
+        return width == Long.SIZE ? -1L : (1L << width) - 1;
+    }
+    
+    private static String hex(long value) {
+        return "0x" + Long.toHexString(value).toUpperCase(Locale.ROOT) + "L";
+    }
+    
+    private static String type(TypeKind kind) {
+        return kind.name().toLowerCase(Locale.ROOT);
+    }
+    
+    private static AnnotationMirror annotation(Element element, String name) {
+        for (var mirror : element.getAnnotationMirrors()) {
+            var type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+    
+    private static Map<String, Object> values(AnnotationMirror mirror) {
+        var values = new HashMap<String, Object>();
+        for (var entry : mirror.getElementValues().entrySet()) {
+            values.put(entry.getKey().getSimpleName().toString(), entry.getValue().getValue());
+        }
+        return values;
+    }
+    
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+    
+    private record Report(TypeElement type, String packageName, String recordName, String codecName, int id, int size, List<Field> fields) {}
+    
+    private record Field(String name, TypeKind kind, int offset, int width, boolean signed, boolean big) {}
+}
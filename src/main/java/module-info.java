@@ -1,5 +1,9 @@
 module net.gudenau.hidapi {
     requires jdk.incubator.foreign;
+    requires java.management;
+    requires jdk.jfr;
     
     exports net.gudenau.hid;
+    exports net.gudenau.hid.report;
+    exports net.gudenau.hid.internal.jfr to jdk.jfr;
 }
@@ -30,6 +30,9 @@ public final class HidApi {
     private static final MethodHandle HID_VERSION;
     private static final MethodHandle HID_VERSION_STR;
     
+    private static final Object INIT_LOCK = new Object();
+    private static volatile boolean initialized;
+    
     static {
         var binder = Natives.load();
         HID_INIT = binder.apply("hid_init", FunctionDescriptor.of(S32));
@@ -121,10 +124,32 @@ public final class HidApi {
      * @return This function returns 0 on success and -1 on error.
      */
     public static int hid_init() {
-        try {
-            return (int) HID_INIT.invokeExact();
-        } catch (Throwable e) {
-            throw new RuntimeException("Failed to execute hid_init", e);
+        synchronized (INIT_LOCK) {
+            try {
+                var result = (int) HID_INIT.invokeExact();
+                initialized = result == 0;
+                return result;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to execute hid_init", e);
+            }
+        }
+    }
+    
+    /**
+     * Initialize the HIDAPI library if it has not been initialized yet.
+     * <p>
+     * Unlike hid_init(), this is safe to call from many threads at once;
+     * hid_init() is executed exactly once until the next hid_exit(). Call
+     * this before opening devices from different threads simultaneously.
+     *
+     * @return This function returns 0 on success and -1 on error.
+     */
+    public static int hid_init_once() {
+        if (initialized) {
+            return 0;
+        }
+        synchronized (INIT_LOCK) {
+            return initialized ? 0 : hid_init();
         }
     }
     
@@ -138,10 +163,14 @@ public final class HidApi {
      * @return This function returns 0 on success and -1 on error.
      */
     public static int hid_exit() {
-        try {
-            return (int) HID_EXIT.invokeExact();
-        } catch (Throwable e) {
-            throw new RuntimeException("Failed to execute hid_exit", e);
+        synchronized (INIT_LOCK) {
+            try {
+                initialized = false;
+                HidLeakTracker.exit();
+                return (int) HID_EXIT.invokeExact();
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to execute hid_exit", e);
+            }
         }
     }
     
@@ -167,7 +196,11 @@ public final class HidApi {
     public static HidDeviceInfo hid_enumerate(int vendor_id, int product_id) {
         try {
             var address = (MemoryAddress) HID_ENUMERATE.invokeExact(vendor_id, product_id);
-            return address.equals(MemoryAddress.NULL) ? null : new HidDeviceInfo(address);
+            if (address.equals(MemoryAddress.NULL)) {
+                return null;
+            }
+            HidLeakTracker.track(HidLeakTracker.Kind.ENUMERATION, address);
+            return new HidDeviceInfo(address);
         } catch (Throwable e) {
             throw new RuntimeException("Failed to execute hid_enumerate", e);
         }
@@ -183,6 +216,7 @@ public final class HidApi {
      */
     public static void hid_free_enumeration(HidDeviceInfo devs) {
         try {
+            HidLeakTracker.release(HidLeakTracker.Kind.ENUMERATION, devs.segment().address());
             HID_FREE_ENUMERATION.invokeExact((Addressable) devs.segment());
         } catch (Throwable e) {
             throw new RuntimeException("Failed to execute hid_free_enumeration", e);
@@ -210,7 +244,11 @@ public final class HidApi {
             var allocator = SegmentAllocator.nativeAllocator(scope);
             var serial_numberNative = serial_number == null ? MemoryAddress.NULL : Natives.allocateWideString(allocator, serial_number).address();
             var address = (MemoryAddress) HID_OPEN.invokeExact(vendor_id, product_id, (Addressable) serial_numberNative);
-            return address.equals(MemoryAddress.NULL) ? null : new HidDevice(address);
+            if (address.equals(MemoryAddress.NULL)) {
+                return null;
+            }
+            HidLeakTracker.track(HidLeakTracker.Kind.DEVICE, address);
+            return new HidDevice(address);
         } catch (Throwable e) {
             throw new RuntimeException("Failed to execute hid_open", e);
         }
@@ -234,7 +272,11 @@ public final class HidApi {
             var allocator = SegmentAllocator.nativeAllocator(scope);
             var pathNative = allocator.allocateUtf8String(path);
             var address = (MemoryAddress) HID_OPEN_PATH.invokeExact((Addressable) pathNative);
-            return address.equals(MemoryAddress.NULL) ? null : new HidDevice(address);
+            if (address.equals(MemoryAddress.NULL)) {
+                return null;
+            }
+            HidLeakTracker.track(HidLeakTracker.Kind.DEVICE, address);
+            return new HidDevice(address);
         } catch (Throwable e) {
             throw new RuntimeException("Failed to execute hid_open_path", e);
         }
@@ -443,6 +485,7 @@ public final class HidApi {
      */
     public static void hid_close(HidDevice dev) {
         try {
+            HidLeakTracker.release(HidLeakTracker.Kind.DEVICE, dev.address());
             HID_CLOSE.invokeExact((Addressable) dev.address());
         } catch (Throwable e) {
             throw new RuntimeException("Failed to execute hid_close", e);
@@ -529,8 +572,8 @@ public final class HidApi {
      */
     public static String hid_error(HidDevice dev) {
         try {
-            var address = (MemoryAddress) HID_ERROR.invokeExact((Addressable) dev.address());
-            return address.equals(MemoryAddress.NULL) ? null : address.getUtf8String(0);
+            var address = (MemoryAddress) HID_ERROR.invokeExact((Addressable) (dev == null ? MemoryAddress.NULL : dev.address()));
+            return Natives.readWideString(address);
         } catch (Throwable e) {
             throw new RuntimeException("Failed to execute hid_error", e);
         }
@@ -0,0 +1,324 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long and indefinite reads that can be interrupted and cancelled.
+ * <p>
+ * A hid_read() or a hid_read_timeout() with a long timeout is a native call
+ * that holds its thread until the device answers and ignores interrupts.
+ * This splits the wait into short hid_read_timeout() slices and checks for
+ * interruption or cancellation between them, so no single native call holds
+ * the thread for longer than a slice.
+ * <p>
+ * Waits can either run on the calling thread or be handed to a small pool of
+ * dedicated reader threads. The pool threads take turns on every pending
+ * read, one slice at a time, so a few threads can serve many more waiting
+ * reads than there are threads. The caller waits on the returned future
+ * instead of on the native call.
+ */
+public final class HidBlockingReader implements AutoCloseable {
+    private static final long FOREVER = Long.MAX_VALUE;
+    // nanoTime() differences are only meaningful below 2^63, keep well clear of that.
+    private static final Duration MAX_TIMEOUT = Duration.ofNanos(Long.MAX_VALUE >> 1);
+    // How long a reader thread rests after a full round over the pending reads found nothing.
+    private static final long IDLE_NANOS = Duration.ofMillis(1).toNanos();
+    
+    private final LinkedBlockingQueue<PendingRead> queue = new LinkedBlockingQueue<>();
+    private final Thread[] threads;
+    private final LongAdder cancelledReports = new LongAdder();
+    
+    private volatile int sliceMillis = 10;
+    private volatile boolean running = true;
+    
+    /**
+     * Creates a reader with its own pool.
+     *
+     * @param threads The amount of reader threads
+     * @param factory Creates the reader threads
+     */
+    public HidBlockingReader(int threads, ThreadFactory factory) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        Objects.requireNonNull(factory, "factory can't be null");
+        
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = factory.newThread(this::work);
+        }
+        for (var thread : this.threads) {
+            thread.start();
+        }
+    }
+    
+    public HidBlockingReader(int threads) {
+        this(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                var thread = new Thread(runnable, "hid-reader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Sets the longest a single native read may take, this bounds how long
+     * an interrupt or cancellation takes to be noticed.
+     */
+    public HidBlockingReader sliceMillis(int milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("milliseconds must be positive");
+        }
+        sliceMillis = milliseconds;
+        return this;
+    }
+    
+    /**
+     * Reads an input report on the calling thread.
+     * <p>
+     * This only makes the wait interruptible. The slices run back to back,
+     * so the calling thread is inside a native call for almost the whole
+     * wait, and a virtual thread would keep its carrier pinned for that long.
+     * Use {@link #readAsync} to hand the wait to the reader threads instead.
+     *
+     * @param dev     A device handle returned from hid_open().
+     * @param data    A buffer to put the read data into.
+     * @param timeout How long to wait, or null to wait forever
+     * @return The actual number of bytes read, 0 if the timeout expired or -1
+     * on error.
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public int read(HidDevice dev, MemorySegment data, Duration timeout) throws InterruptedException {
+        Objects.requireNonNull(dev, "dev can't be null");
+        Objects.requireNonNull(data, "data can't be null");
+        
+        var start = System.nanoTime();
+        var timeoutNanos = timeoutNanos(timeout);
+        var slice = sliceMillis;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            
+            var remaining = remainingMillis(start, timeoutNanos);
+            if (remaining <= 0) {
+                // Out of time, one last look for a report that is already pending.
+                return HidApi.hid_read_timeout(dev, data, 0);
+            }
+            var result = HidApi.hid_read_timeout(dev, data, (int) Math.min(slice, remaining));
+            if (result != 0) {
+                return result;
+            }
+        }
+    }
+    
+    /**
+     * Reads an input report on the reader threads. Cancelling the future
+     * stops the read within a slice.
+     * <p>
+     * The buffer is written by a reader thread, so it must come from a
+     * shared or global scope and should not be touched until the future
+     * completes. Once the future is cancelled the buffer is never written
+     * again. A report that arrives during the slice that was running when
+     * the future got cancelled can't be put back on the device queue, it is
+     * dropped and counted by {@link #cancelledReports()}.
+     * <p>
+     * Each device should only have one pending read at a time.
+     *
+     * @param dev     A device handle returned from hid_open().
+     * @param data    A buffer to put the read data into.
+     * @param timeout How long to wait, or null to wait forever
+     * @return The actual number of bytes read, 0 if the timeout expired or -1
+     * on error.
+     */
+    public CompletableFuture<Integer> readAsync(HidDevice dev, MemorySegment data, Duration timeout) {
+        Objects.requireNonNull(dev, "dev can't be null");
+        Objects.requireNonNull(data, "data can't be null");
+        
+        var read = new PendingRead(dev, data, System.nanoTime(), timeoutNanos(timeout));
+        if (!running) {
+            read.fail(new RejectedExecutionException("Reader is closed"));
+            return read.future;
+        }
+        queue.add(read);
+        // close() may have drained the queue between the check and the add.
+        if (!running && queue.remove(read)) {
+            read.fail(new CancellationException("Reader was shut down"));
+        }
+        return read.future;
+    }
+    
+    /**
+     * The amount of reports that were read by a {@link #readAsync} after its
+     * future was cancelled and had to be dropped.
+     */
+    public long cancelledReports() {
+        return cancelledReports.sum();
+    }
+    
+    private void work() {
+        int idle = 0;
+        while (running) {
+            PendingRead read;
+            try {
+                read = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            
+            // Only wait on the device when nobody else is waiting for a thread.
+            var slice = queue.isEmpty() ? sliceMillis : 0;
+            if (read.step(slice)) {
+                idle = 0;
+                continue;
+            }
+            queue.add(read);
+            
+            if (slice != 0) {
+                idle = 0;
+            } else if (++idle >= queue.size()) {
+                // A whole round came back empty, rest instead of spinning over idle devices.
+                idle = 0;
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+    
+    private static long remainingMillis(long start, long timeoutNanos) {
+        if (timeoutNanos == FOREVER) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos - (System.nanoTime() - start));
+    }
+    
+    /**
+     * Converts a timeout to nanoseconds, timeouts too long to measure with
+     * System.nanoTime() wait forever.
+     */
+    private static long timeoutNanos(Duration timeout) {
+        if (timeout == null) {
+            return FOREVER;
+        }
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        return timeout.compareTo(MAX_TIMEOUT) >= 0 ? FOREVER : timeout.toNanos();
+    }
+    
+    /**
+     * Stops the reader threads, offloaded reads that are still waiting are
+     * cancelled.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (var thread : threads) {
+            thread.interrupt();
+        }
+        for (var thread : threads) {
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        var remaining = new ArrayList<PendingRead>();
+        queue.drainTo(remaining);
+        for (var read : remaining) {
+            read.fail(new CancellationException("Reader was shut down"));
+        }
+    }
+    
+    /**
+     * A read that is waiting for its turn on a reader thread.
+     */
+    private final class PendingRead {
+        private final HidDevice dev;
+        private final MemorySegment data;
+        private final long start;
+        private final long timeoutNanos;
+        private final ReadFuture future = new ReadFuture();
+        // Read into a buffer of our own so a cancelled read never writes to the caller's buffer.
+        private final ResourceScope scope = ResourceScope.newSharedScope();
+        private final MemorySegment buffer;
+        
+        PendingRead(HidDevice dev, MemorySegment data, long start, long timeoutNanos) {
+            this.dev = dev;
+            this.data = data;
+            this.start = start;
+            this.timeoutNanos = timeoutNanos;
+            this.buffer = MemorySegment.allocateNative(data.byteSize(), scope);
+        }
+        
+        /**
+         * Runs one slice of the read.
+         *
+         * @param slice The longest the slice may wait in milliseconds
+         * @return True once the read is finished
+         */
+        boolean step(int slice) {
+            if (future.isDone()) {
+                scope.close();
+                return true;
+            }
+            
+            try {
+                var remaining = remainingMillis(start, timeoutNanos);
+                var result = HidApi.hid_read_timeout(dev, buffer, (int) Math.max(0, Math.min(slice, remaining)));
+                if (result == 0 && remaining > 0) {
+                    return false;
+                }
+                if (!future.deliver(data, buffer, result) && result > 0) {
+                    cancelledReports.increment();
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+            scope.close();
+            return true;
+        }
+        
+        void fail(Throwable cause) {
+            future.completeExceptionally(cause);
+            scope.close();
+        }
+    }
+    
+    /**
+     * A future that hands its result over and gets cancelled under the same
+     * lock, so the caller's buffer is only written while it can still be
+     * delivered.
+     */
+    private static final class ReadFuture extends CompletableFuture<Integer> {
+        synchronized boolean deliver(MemorySegment data, MemorySegment buffer, int result) {
+            if (isDone()) {
+                return false;
+            }
+            if (result > 0) {
+                data.copyFrom(buffer.asSlice(0, result));
+            }
+            return complete(result);
+        }
+        
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.gudenau.hid;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens many HID devices concurrently.
+ * <p>
+ * hid_init() is guaranteed to run exactly once before any of the opens are
+ * started, the opens themselves are spread over a bounded pool of threads so
+ * a single slow device does not hold up the rest.
+ */
+public final class HidBulkOpen {
+    private HidBulkOpen() {}
+    
+    /**
+     * The outcome of opening a single device.
+     *
+     * @param path   The path that was opened
+     * @param device The opened device or null on failure
+     * @param error  The reason the open failed or null on success
+     */
+    public record Result(String path, HidDevice device, String error) {
+        public Result {
+            Objects.requireNonNull(path, "path can't be null");
+        }
+        
+        public boolean success() {
+            return device != null;
+        }
+    }
+    
+    /**
+     * Opens every device in a list of enumerated devices.
+     *
+     * @param devices     The devices to open, must not be freed until this returns
+     * @param parallelism The maximum amount of opens in flight at once
+     * @param timeout     How long to wait for all opens to complete
+     * @return One result per device, in the same order as devices
+     * @see #openPaths(List, int, Duration)
+     */
+    public static List<Result> openDevices(List<HidDeviceInfo> devices, int parallelism, Duration timeout) {
+        Objects.requireNonNull(devices, "devices can't be null");
+        
+        var paths = new ArrayList<String>(devices.size());
+        for (var device : devices) {
+            paths.add(device.pathString());
+        }
+        return openPaths(paths, parallelism, timeout);
+    }
+    
+    /**
+     * Opens every device in a list of paths.
+     * <p>
+     * Devices that have not finished opening when the timeout expires are
+     * reported as failures, if one of them does open later it is closed
+     * again so the handle does not leak.
+     *
+     * @param paths       The paths to open
+     * @param parallelism The maximum amount of opens in flight at once
+     * @param timeout     How long to wait for all opens to complete
+     * @return One result per path, in the same order as paths
+     */
+    public static List<Result> openPaths(List<String> paths, int parallelism, Duration timeout) {
+        Objects.requireNonNull(paths, "paths can't be null");
+        Objects.requireNonNull(timeout, "timeout can't be null");
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        if (paths.isEmpty()) {
+            return List.of();
+        }
+        
+        if (HidApi.hid_init_once() != 0) {
+            throw new RuntimeException("Failed to initialize hidapi: " + HidApi.hid_error(null));
+        }
+        
+        var executor = Executors.newFixedThreadPool(Math.min(parallelism, paths.size()), new OpenThreadFactory());
+        try {
+            var futures = new ArrayList<CompletableFuture<Result>>(paths.size());
+            for (var path : paths) {
+                futures.add(CompletableFuture.supplyAsync(() -> open(path), executor));
+            }
+            
+            var deadline = System.nanoTime() + timeout.toNanos();
+            var results = new ArrayList<Result>(paths.size());
+            for (int i = 0; i < futures.size(); i++) {
+                var future = futures.get(i);
+                var path = paths.get(i);
+                try {
+                    results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    future.thenAccept(HidBulkOpen::closeLate);
+                    results.add(new Result(path, null, "Timed out"));
+                } catch (ExecutionException e) {
+                    results.add(new Result(path, null, String.valueOf(e.getCause())));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.forEach(HidBulkOpen::closeLate);
+                    for (int j = i; j < futures.size(); j++) {
+                        futures.get(j).thenAccept(HidBulkOpen::closeLate);
+                    }
+                    throw new RuntimeException("Interrupted while opening devices", e);
+                }
+            }
+            return results;
+        } finally {
+            // Blocked native opens can't be interrupted, let them finish in the background.
+            executor.shutdown();
+        }
+    }
+    
+    private static Result open(String path) {
+        var device = HidApi.hid_open_path(path);
+        if (device == null) {
+            // hid_error is thread local, so this has to be read on the opening thread.
+            var error = HidApi.hid_error(null);
+            return new Result(path, null, error == null ? "Failed to open device" : error);
+        }
+        return new Result(path, device, null);
+    }
+    
+    private static void closeLate(Result result) {
+        if (result.success()) {
+            HidApi.hid_close(result.device());
+        }
+    }
+    
+    private static final class OpenThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL = new AtomicInteger();
+        
+        private final int pool = POOL.incrementAndGet();
+        private final AtomicInteger thread = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable runnable) {
+            var result = new Thread(runnable, "hid-open-" + pool + "-" + thread.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+}
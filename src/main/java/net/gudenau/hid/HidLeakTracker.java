@@ -0,0 +1,278 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.jfr.FlightRecorder;
+import net.gudenau.hid.internal.jfr.HidHandlesEvent;
+import net.gudenau.hid.internal.jfr.HidLeakEvent;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the native handles handed out by {@link HidApi} so leaked devices
+ * and enumeration lists can be found.
+ * <p>
+ * Tracking is off by default and costs a single volatile read per open and
+ * close. It is enabled by setting a sample rate above zero, either with
+ * {@link #sampleRate(double)} or the {@value #PROPERTY} system property.
+ * While enabled every handle is recorded and the given fraction of them
+ * also records the stack trace of where it was allocated.
+ * <p>
+ * Outstanding handles can be inspected with {@link #outstanding()}, over
+ * JMX, or as JFR events. They are also logged when hid_exit() is called.
+ */
+public final class HidLeakTracker {
+    private HidLeakTracker() {}
+    
+    /**
+     * The system property used to set the initial sample rate.
+     */
+    public static final String PROPERTY = "net.gudenau.hid.leakTracker.sampleRate";
+    
+    private static final System.Logger LOGGER = System.getLogger(HidLeakTracker.class.getName());
+    
+    private static final Map<Long, Allocation> DEVICES = new ConcurrentHashMap<>();
+    private static final Map<Long, Allocation> ENUMERATIONS = new ConcurrentHashMap<>();
+    private static final LongAdder TRACKED = new LongAdder();
+    private static final AtomicBoolean REGISTERED = new AtomicBoolean();
+    
+    private static volatile double sampleRate;
+    
+    static {
+        var property = System.getProperty(PROPERTY);
+        if (property != null) {
+            try {
+                sampleRate(Double.parseDouble(property));
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(System.Logger.Level.WARNING, "Ignoring invalid " + PROPERTY + ": " + property);
+            }
+        }
+    }
+    
+    public enum Kind {
+        /**
+         * A device handle from hid_open() or hid_open_path().
+         */
+        DEVICE,
+        /**
+         * A device list from hid_enumerate().
+         */
+        ENUMERATION,
+    }
+    
+    /**
+     * A tracked native handle.
+     *
+     * @param kind    What the handle is
+     * @param address The native address of the handle
+     * @param thread  The name of the thread that allocated the handle
+     * @param time    When the handle was allocated
+     * @param site    Where the handle was allocated or null if it was not sampled
+     */
+    public record Allocation(Kind kind, long address, String thread, Instant time, Throwable site) {
+        public Duration age() {
+            return Duration.between(time, Instant.now());
+        }
+    }
+    
+    private static final class AllocationSite extends Throwable {
+        private static final long serialVersionUID = 1L;
+        
+        private AllocationSite() {
+            super("Allocation site", null, false, true);
+        }
+    }
+    
+    public static double sampleRate() {
+        return sampleRate;
+    }
+    
+    /**
+     * Sets the fraction of tracked handles that record their allocation site.
+     * <p>
+     * Zero disables tracking of new handles, handles that are already tracked
+     * are still removed when they are released.
+     *
+     * @param rate The sample rate, between 0 and 1
+     */
+    public static void sampleRate(double rate) {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("rate must be between 0 and 1");
+        }
+        sampleRate = rate;
+        if (rate > 0) {
+            register();
+        }
+    }
+    
+    static void track(Kind kind, MemoryAddress address) {
+        var rate = sampleRate;
+        if (rate <= 0) {
+            return;
+        }
+        
+        var site = rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate ? new AllocationSite() : null;
+        var allocation = new Allocation(kind, address.toRawLongValue(), Thread.currentThread().getName(), Instant.now(), site);
+        allocations(kind).put(allocation.address(), allocation);
+        TRACKED.increment();
+    }
+    
+    static void release(Kind kind, MemoryAddress address) {
+        var allocations = allocations(kind);
+        if (!allocations.isEmpty()) {
+            allocations.remove(address.toRawLongValue());
+        }
+    }
+    
+    private static Map<Long, Allocation> allocations(Kind kind) {
+        return kind == Kind.DEVICE ? DEVICES : ENUMERATIONS;
+    }
+    
+    /**
+     * Gets all tracked handles that have not been released yet, oldest first.
+     */
+    public static List<Allocation> outstanding() {
+        var result = new ArrayList<Allocation>(DEVICES.size() + ENUMERATIONS.size());
+        result.addAll(DEVICES.values());
+        result.addAll(ENUMERATIONS.values());
+        result.sort(Comparator.comparing(Allocation::time));
+        return result;
+    }
+    
+    /**
+     * Creates a human readable report of all outstanding handles.
+     */
+    public static String report() {
+        var outstanding = outstanding();
+        var writer = new StringWriter();
+        var printer = new PrintWriter(writer);
+        printer.printf("%d outstanding HID handle(s)%n", outstanding.size());
+        for (var allocation : outstanding) {
+            printer.printf(
+                "%s 0x%016X allocated by %s %s ago%n",
+                allocation.kind(),
+                allocation.address(),
+                allocation.thread(),
+                allocation.age()
+            );
+            if (allocation.site() != null) {
+                for (var element : allocation.site().getStackTrace()) {
+                    printer.printf("\tat %s%n", element);
+                }
+            }
+        }
+        printer.flush();
+        return writer.toString();
+    }
+    
+    /**
+     * Logs every outstanding handle and emits a JFR event for each of them.
+     *
+     * @return The amount of outstanding handles
+     */
+    public static int reportLeaks() {
+        var outstanding = outstanding();
+        if (outstanding.isEmpty()) {
+            return 0;
+        }
+        
+        LOGGER.log(System.Logger.Level.WARNING, report());
+        for (var allocation : outstanding) {
+            var event = new HidLeakEvent();
+            if (event.isEnabled()) {
+                event.kind = allocation.kind().name();
+                event.address = allocation.address();
+                event.thread = allocation.thread();
+                event.age = allocation.age().toMillis();
+                if (allocation.site() != null) {
+                    var writer = new StringWriter();
+                    allocation.site().printStackTrace(new PrintWriter(writer));
+                    event.site = writer.toString();
+                }
+                event.commit();
+            }
+        }
+        return outstanding.size();
+    }
+    
+    /**
+     * Reports any leaks and forgets every handle, called by hid_exit() as all
+     * handles are invalid once the library is finalized.
+     */
+    static void exit() {
+        if (DEVICES.isEmpty() && ENUMERATIONS.isEmpty()) {
+            return;
+        }
+        reportLeaks();
+        DEVICES.clear();
+        ENUMERATIONS.clear();
+    }
+    
+    private static void register() {
+        if (!REGISTERED.compareAndSet(false, true)) {
+            return;
+        }
+        
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("net.gudenau.hid:type=LeakTracker"));
+        } catch (InstanceAlreadyExistsException ignored) {
+            // Another copy of the library, leave it be.
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to register leak tracker MBean", e);
+        }
+        
+        FlightRecorder.addPeriodicEvent(HidHandlesEvent.class, () -> {
+            var event = new HidHandlesEvent();
+            event.devices = DEVICES.size();
+            event.enumerations = ENUMERATIONS.size();
+            event.tracked = TRACKED.sum();
+            event.commit();
+        });
+    }
+    
+    private static final class Bean implements HidLeakTrackerMXBean {
+        @Override
+        public double getSampleRate() {
+            return sampleRate();
+        }
+        
+        @Override
+        public void setSampleRate(double sampleRate) {
+            sampleRate(sampleRate);
+        }
+        
+        @Override
+        public int getOpenDevices() {
+            return DEVICES.size();
+        }
+        
+        @Override
+        public int getOpenEnumerations() {
+            return ENUMERATIONS.size();
+        }
+        
+        @Override
+        public long getTotalTracked() {
+            return TRACKED.sum();
+        }
+        
+        @Override
+        public String getReport() {
+            return report();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net.gudenau.hid;
+
+/**
+ * The JMX view of the {@link HidLeakTracker}, registered as
+ * {@code net.gudenau.hid:type=LeakTracker} once tracking is enabled.
+ */
+public interface HidLeakTrackerMXBean {
+    double getSampleRate();
+    
+    void setSampleRate(double sampleRate);
+    
+    int getOpenDevices();
+    
+    int getOpenEnumerations();
+    
+    long getTotalTracked();
+    
+    String getReport();
+}
@@ -0,0 +1,362 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import jdk.incubator.foreign.ValueLayout;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Services many devices from a small pool of threads with non-blocking reads.
+ * <p>
+ * The hidapi library does not expose anything that can be waited on, so the
+ * alternative is a blocking reader thread per device. Registered devices are
+ * switched to non-blocking mode and split between the poller threads, every
+ * thread sweeps its devices and hands the reports to their handlers.
+ * <p>
+ * Each device has its own poll interval. While it is sending reports it is
+ * polled again after the active interval, zero by default which spins. Once
+ * it goes quiet it keeps that rate for a few sweeps and then backs off
+ * exponentially between the minimum and maximum idle interval. Lower
+ * intervals trade CPU time for latency.
+ */
+public final class HidPoller implements AutoCloseable {
+    private static final System.Logger LOGGER = System.getLogger(HidPoller.class.getName());
+    private static final int BATCH_SIZE = 64;
+    
+    private final Worker[] workers;
+    
+    private volatile long activeInterval = 0;
+    private volatile int spinSweeps = 64;
+    private volatile long minIdleInterval = Duration.ofMillis(1).toNanos();
+    private volatile long maxIdleInterval = Duration.ofMillis(50).toNanos();
+    private volatile boolean running = true;
+    
+    /**
+     * Starts a poller.
+     *
+     * @param threads The amount of poller threads
+     * @param factory Creates the poller threads, like a {@link HidThreadFactory}
+     */
+    public HidPoller(int threads, ThreadFactory factory) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        Objects.requireNonNull(factory, "factory can't be null");
+        
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+        }
+        for (var worker : workers) {
+            worker.thread = factory.newThread(worker);
+            worker.thread.start();
+        }
+    }
+    
+    public HidPoller(int threads) {
+        this(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                var thread = new Thread(runnable, "hid-poller-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Sets how long to wait before polling a device that just sent reports,
+     * zero to spin.
+     */
+    public HidPoller activeInterval(Duration interval) {
+        activeInterval = checkInterval(interval);
+        return this;
+    }
+    
+    /**
+     * Sets how many empty sweeps a device is polled at the active interval
+     * before it starts backing off.
+     */
+    public HidPoller spinSweeps(int sweeps) {
+        if (sweeps < 0) {
+            throw new IllegalArgumentException("sweeps can't be negative");
+        }
+        spinSweeps = sweeps;
+        return this;
+    }
+    
+    /**
+     * Sets the range the poll interval of an idle device backs off within.
+     */
+    public HidPoller idleInterval(Duration min, Duration max) {
+        var minNanos = checkInterval(min);
+        var maxNanos = checkInterval(max);
+        if (minNanos > maxNanos) {
+            throw new IllegalArgumentException("min can't be greater than max");
+        }
+        minIdleInterval = minNanos;
+        maxIdleInterval = maxNanos;
+        return this;
+    }
+    
+    private static long checkInterval(Duration interval) {
+        Objects.requireNonNull(interval, "interval can't be null");
+        if (interval.isNegative()) {
+            throw new IllegalArgumentException("interval can't be negative");
+        }
+        return interval.toNanos();
+    }
+    
+    /**
+     * Switches a device to non-blocking mode and starts polling it. The
+     * poller does not take ownership of the device, it must stay open until
+     * the registration is closed.
+     *
+     * @param device        A device handle returned from hid_open().
+     * @param maxReportSize The size of the largest report the device sends,
+     *                      including the report ID.
+     * @param handler       Receives the reports on a poller thread
+     * @return The registration
+     */
+    public Registration register(HidDevice device, int maxReportSize, HidReportHandler handler) {
+        Objects.requireNonNull(device, "device can't be null");
+        Objects.requireNonNull(handler, "handler can't be null");
+        if (maxReportSize < 1) {
+            throw new IllegalArgumentException("maxReportSize must be positive");
+        }
+        if (!running) {
+            throw new IllegalStateException("Poller is closed");
+        }
+        if (HidApi.hid_set_nonblocking(device, true) != 0) {
+            throw new IllegalStateException("Failed to make device non-blocking: " + HidApi.hid_error(device));
+        }
+        
+        var worker = workers[0];
+        for (var candidate : workers) {
+            if (candidate.registrations.size() < worker.registrations.size()) {
+                worker = candidate;
+            }
+        }
+        
+        var registration = new Registration(worker, device, maxReportSize, handler);
+        worker.registrations.add(registration);
+        LockSupport.unpark(worker.thread);
+        return registration;
+    }
+    
+    /**
+     * Stops all poller threads and closes every registration.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (var worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+        for (var worker : workers) {
+            if (worker.thread != Thread.currentThread()) {
+                try {
+                    worker.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (var registration : worker.registrations) {
+                registration.close();
+            }
+        }
+    }
+    
+    /**
+     * A device that is being polled.
+     */
+    public final class Registration implements AutoCloseable {
+        private final Worker worker;
+        private final HidDevice device;
+        private final HidReportHandler handler;
+        private final ResourceScope scope = ResourceScope.newSharedScope();
+        private final MemorySegment buffer;
+        
+        // Only touched by the worker thread.
+        private long nextPoll;
+        private long interval;
+        private int idleSweeps;
+        
+        private volatile long reports;
+        private volatile long errors;
+        private volatile String failure;
+        private boolean deviceFailed;
+        private boolean closed;
+        
+        private Registration(Worker worker, HidDevice device, int maxReportSize, HidReportHandler handler) {
+            this.worker = worker;
+            this.device = device;
+            this.handler = handler;
+            this.buffer = MemorySegment.allocateNative(maxReportSize, scope);
+            this.nextPoll = System.nanoTime();
+        }
+        
+        /**
+         * Drains up to a batch of reports.
+         *
+         * @return The amount of reports read or -1 if the registration is
+         * done
+         */
+        private synchronized int poll() {
+            if (closed) {
+                return -1;
+            }
+            
+            int count = 0;
+            while (count < BATCH_SIZE) {
+                var result = HidApi.hid_read(device, buffer);
+                if (result < 0) {
+                    deviceFailed = true;
+                    fail(HidApi.hid_error(device), null);
+                    return -1;
+                }
+                if (result == 0) {
+                    break;
+                }
+                
+                count++;
+                var report = buffer.asSlice(0, result);
+                var reportId = Byte.toUnsignedInt(report.get(ValueLayout.JAVA_BYTE, 0));
+                try {
+                    handler.handle(reportId, report);
+                } catch (RuntimeException e) {
+                    errors++;
+                    LOGGER.log(System.Logger.Level.WARNING, "Handler for report " + reportId + " failed", e);
+                }
+                if (closed) {
+                    // The handler closed its own registration, the buffer is gone.
+                    reports += count;
+                    return -1;
+                }
+            }
+            reports += count;
+            return count;
+        }
+        
+        /**
+         * Stops polling after a failure, keeping the reason for {@link #failure()}.
+         */
+        private synchronized void fail(String reason, Throwable cause) {
+            failure = reason;
+            LOGGER.log(System.Logger.Level.WARNING, "Stopped polling failed device: " + reason, cause);
+            close();
+        }
+        
+        public HidDevice device() {
+            return device;
+        }
+        
+        /**
+         * The amount of reports that were read.
+         */
+        public long reports() {
+            return reports;
+        }
+        
+        /**
+         * The amount of times the handler threw an exception.
+         */
+        public long errors() {
+            return errors;
+        }
+        
+        /**
+         * Gets the hid_error() string if polling stopped because the device
+         * failed, the exception if polling it threw, otherwise null.
+         */
+        public String failure() {
+            return failure;
+        }
+        
+        /**
+         * Stops polling the device and puts it back into blocking mode. When
+         * this returns the handler will not be called again.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            worker.registrations.remove(this);
+            try {
+                if (!deviceFailed) {
+                    HidApi.hid_set_nonblocking(device, false);
+                }
+            } finally {
+                scope.close();
+            }
+        }
+    }
+    
+    private final class Worker implements Runnable {
+        private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+        private Thread thread;
+        
+        @Override
+        public void run() {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                var now = System.nanoTime();
+                var wake = now + maxIdleInterval;
+                
+                for (var registration : registrations) {
+                    if (registration.nextPoll - now <= 0) {
+                        int count;
+                        try {
+                            count = registration.poll();
+                        } catch (RuntimeException e) {
+                            // Only this device is dropped, the others on this worker keep being polled.
+                            try {
+                                registration.fail(String.valueOf(e), e);
+                            } catch (RuntimeException closeFailure) {
+                                e.addSuppressed(closeFailure);
+                                LOGGER.log(System.Logger.Level.WARNING, "Failed to close registration", e);
+                            }
+                            continue;
+                        }
+                        if (count < 0) {
+                            continue;
+                        }
+                        schedule(registration, count > 0);
+                        registration.nextPoll = now + registration.interval;
+                    }
+                    if (registration.nextPoll - wake < 0) {
+                        wake = registration.nextPoll;
+                    }
+                }
+                
+                var delay = wake - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(this, delay);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        
+        private void schedule(Registration registration, boolean active) {
+            if (active) {
+                registration.idleSweeps = 0;
+                registration.interval = activeInterval;
+            } else if (registration.idleSweeps < spinSweeps) {
+                registration.idleSweeps++;
+                registration.interval = activeInterval;
+            } else {
+                registration.interval = Math.min(Math.max(registration.interval * 2, minIdleInterval), maxIdleInterval);
+            }
+        }
+    }
+}
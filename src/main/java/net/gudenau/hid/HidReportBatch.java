@@ -0,0 +1,144 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.*;
+
+import java.util.Objects;
+
+/**
+ * A reusable buffer that drains every pending input report from a device in
+ * one call.
+ * <p>
+ * Reports are packed back to back into a single native segment, the offset
+ * and length of each report is kept in a packed index. A batch is not thread
+ * safe and its contents are replaced by every read.
+ */
+public final class HidReportBatch {
+    private final MemorySegment segment;
+    private final int maxReports;
+    private final int maxReportSize;
+    private final long[] index;
+    
+    private int count;
+    
+    /**
+     * Creates a new batch.
+     *
+     * @param scope         The scope of the native buffer
+     * @param maxReports    The most reports a single read can return
+     * @param maxReportSize The size of the largest report the device sends
+     */
+    public HidReportBatch(ResourceScope scope, int maxReports, int maxReportSize) {
+        Objects.requireNonNull(scope, "scope can't be null");
+        if (maxReports < 1 || maxReportSize < 1) {
+            throw new IllegalArgumentException("maxReports and maxReportSize must be positive");
+        }
+        
+        this.segment = MemorySegment.allocateNative((long) maxReports * maxReportSize, 8, scope);
+        this.maxReports = maxReports;
+        this.maxReportSize = maxReportSize;
+        this.index = new long[maxReports];
+    }
+    
+    /**
+     * Reads every report that is currently available from a device.
+     * <p>
+     * Reports are drained with zero timeout reads, so the blocking mode of
+     * the handle is left untouched. If nothing is pending this waits for up
+     * to the timeout for the first report.
+     *
+     * @param dev          A device handle returned from hid_open().
+     * @param milliseconds timeout in milliseconds for the first report, 0 to
+     *                     not wait at all or -1 for blocking wait.
+     * @return The amount of reports read, 0 if the timeout expired or -1 if
+     * the first read failed. An error after the first report ends the batch
+     * early and will be reported again by the next read.
+     */
+    public int read(HidDevice dev, int milliseconds) {
+        var result = readOne(dev, milliseconds);
+        return result > 0 ? drain(dev) : result;
+    }
+    
+    /**
+     * Reads a single report, replacing the contents of the batch.
+     *
+     * @param dev          A device handle returned from hid_open().
+     * @param milliseconds timeout in milliseconds, 0 to not wait at all or -1
+     *                     for blocking wait.
+     * @return 1 if a report was read, 0 if the timeout expired or -1 if the
+     * read failed.
+     */
+    public int readOne(HidDevice dev, int milliseconds) {
+        Objects.requireNonNull(dev, "dev can't be null");
+        
+        count = 0;
+        var result = HidApi.hid_read_timeout(dev, segment.asSlice(0, maxReportSize), milliseconds);
+        if (result <= 0) {
+            return result;
+        }
+        index[count++] = result;
+        return 1;
+    }
+    
+    /**
+     * Appends every report that is already pending to the batch without
+     * waiting. An error ends the batch early and will be reported again by
+     * the next read.
+     *
+     * @param dev A device handle returned from hid_open().
+     * @return The amount of reports in the batch
+     */
+    public int drain(HidDevice dev) {
+        Objects.requireNonNull(dev, "dev can't be null");
+        
+        long offset = count == 0 ? 0 : offset(count - 1) + length(count - 1);
+        while (count < maxReports) {
+            var result = HidApi.hid_read_timeout(dev, segment.asSlice(offset, maxReportSize), 0);
+            if (result <= 0) {
+                break;
+            }
+            
+            index[count++] = offset << 32 | result;
+            offset += result;
+        }
+        return count;
+    }
+    
+    /**
+     * The amount of reports from the last read.
+     */
+    public int count() {
+        return count;
+    }
+    
+    /**
+     * The native buffer that holds the reports.
+     */
+    public MemorySegment segment() {
+        return segment;
+    }
+    
+    /**
+     * Gets the packed index of the last read, each entry holds the offset of
+     * a report in the upper 32 bits and its length in the lower 32 bits. Only
+     * the first {@link #count()} entries are valid.
+     */
+    public long[] index() {
+        return index;
+    }
+    
+    public int offset(int report) {
+        return (int) (index[Objects.checkIndex(report, count)] >>> 32);
+    }
+    
+    public int length(int report) {
+        return (int) index[Objects.checkIndex(report, count)];
+    }
+    
+    /**
+     * Gets a slice of the buffer that holds a single report.
+     */
+    public MemorySegment report(int report) {
+        var entry = index[Objects.checkIndex(report, count)];
+        return segment.asSlice(entry >>> 32, (int) entry);
+    }
+}
@@ -0,0 +1,230 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import jdk.incubator.foreign.ValueLayout;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Reads a device that uses numbered reports and routes every report to the
+ * handler subscribed to its report ID.
+ * <p>
+ * Handlers live in a 256 entry table indexed by the report ID, so routing
+ * is a single array load. Reports without a handler go to the default
+ * handler, if there is one. Handlers are called on the reader thread and
+ * should hand off anything that takes a while.
+ */
+public final class HidReportDispatcher implements Runnable, AutoCloseable {
+    private static final System.Logger LOGGER = System.getLogger(HidReportDispatcher.class.getName());
+    private static final int REPORT_IDS = 256;
+    private static final int READ_TIMEOUT = 100;
+    private static final int BATCH_SIZE = 64;
+    private static final long BACKLOG_NANOS = 50_000;
+    
+    private final HidDevice device;
+    private final int maxReportSize;
+    
+    private final AtomicLongArray reports = new AtomicLongArray(REPORT_IDS);
+    private final AtomicLongArray errors = new AtomicLongArray(REPORT_IDS);
+    private final AtomicLongArray dropped = new AtomicLongArray(REPORT_IDS);
+    
+    // Copy on write so the reader only does one volatile read per batch.
+    private volatile HidReportHandler[] handlers = new HidReportHandler[REPORT_IDS];
+    private volatile HidReportHandler defaultHandler;
+    private volatile boolean running = true;
+    private volatile String failure;
+    private Thread thread;
+    
+    /**
+     * Creates a dispatcher for a device, the dispatcher does not take
+     * ownership of the device.
+     *
+     * @param device        A device handle returned from hid_open().
+     * @param maxReportSize The size of the largest report the device sends,
+     *                      including the report ID.
+     */
+    public HidReportDispatcher(HidDevice device, int maxReportSize) {
+        this.device = Objects.requireNonNull(device, "device can't be null");
+        if (maxReportSize < 1) {
+            throw new IllegalArgumentException("maxReportSize must be positive");
+        }
+        this.maxReportSize = maxReportSize;
+    }
+    
+    /**
+     * Subscribes a handler to a report ID, replacing the existing one.
+     */
+    public synchronized HidReportDispatcher subscribe(int reportId, HidReportHandler handler) {
+        Objects.checkIndex(reportId, REPORT_IDS);
+        Objects.requireNonNull(handler, "handler can't be null");
+        
+        var copy = handlers.clone();
+        copy[reportId] = handler;
+        handlers = copy;
+        return this;
+    }
+    
+    public synchronized HidReportDispatcher unsubscribe(int reportId) {
+        Objects.checkIndex(reportId, REPORT_IDS);
+        
+        var copy = handlers.clone();
+        copy[reportId] = null;
+        handlers = copy;
+        return this;
+    }
+    
+    /**
+     * Sets the handler for reports that have no handler of their own, or null
+     * to drop them.
+     */
+    public HidReportDispatcher defaultHandler(HidReportHandler handler) {
+        defaultHandler = handler;
+        return this;
+    }
+    
+    /**
+     * Subscribes a queue to a report ID. Each report is copied into the queue,
+     * reports that arrive while the queue is full are dropped and counted.
+     *
+     * @param reportId The report ID to subscribe to
+     * @param capacity The amount of reports the queue can hold
+     * @return The new queue
+     */
+    public BlockingQueue<byte[]> queue(int reportId, int capacity) {
+        var queue = new ArrayBlockingQueue<byte[]>(capacity);
+        subscribe(reportId, (id, report) -> {
+            if (!queue.offer(report.toArray(ValueLayout.JAVA_BYTE))) {
+                dropped.incrementAndGet(id);
+            }
+        });
+        return queue;
+    }
+    
+    /**
+     * Starts dispatching on a new thread.
+     *
+     * @param factory Creates the reader thread
+     */
+    public synchronized HidReportDispatcher start(ThreadFactory factory) {
+        if (thread != null) {
+            throw new IllegalStateException("Dispatcher was already started");
+        }
+        thread = factory.newThread(this);
+        thread.start();
+        return this;
+    }
+    
+    public HidReportDispatcher start() {
+        return start((runnable) -> {
+            var thread = new Thread(runnable, "hid-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Reads and dispatches reports on the current thread until the dispatcher
+     * is closed, the thread is interrupted or the device fails.
+     */
+    @Override
+    public void run() {
+        try (var scope = ResourceScope.newConfinedScope()) {
+            var batch = new HidReportBatch(scope, BATCH_SIZE, maxReportSize);
+            while (running && !Thread.currentThread().isInterrupted()) {
+                // Only drain when the first report was already queued, at steady
+                // rates the extra zero timeout read would almost always come back
+                // empty and double the native calls per report.
+                var start = System.nanoTime();
+                var count = batch.readOne(device, READ_TIMEOUT);
+                if (count > 0 && System.nanoTime() - start < BACKLOG_NANOS) {
+                    count = batch.drain(device);
+                }
+                if (count < 0) {
+                    failure = HidApi.hid_error(device);
+                    return;
+                }
+                
+                var handlers = this.handlers;
+                for (int i = 0; i < count; i++) {
+                    var report = batch.report(i);
+                    dispatch(handlers, Byte.toUnsignedInt(report.get(ValueLayout.JAVA_BYTE, 0)), report);
+                }
+            }
+        }
+    }
+    
+    private void dispatch(HidReportHandler[] handlers, int reportId, MemorySegment report) {
+        reports.incrementAndGet(reportId);
+        
+        var handler = handlers[reportId];
+        if (handler == null) {
+            handler = defaultHandler;
+            if (handler == null) {
+                dropped.incrementAndGet(reportId);
+                return;
+            }
+        }
+        
+        try {
+            handler.handle(reportId, report);
+        } catch (RuntimeException e) {
+            errors.incrementAndGet(reportId);
+            LOGGER.log(System.Logger.Level.WARNING, "Handler for report " + reportId + " failed", e);
+        }
+    }
+    
+    /**
+     * The amount of reports received with a report ID.
+     */
+    public long reports(int reportId) {
+        return reports.get(reportId);
+    }
+    
+    /**
+     * The amount of reports with a report ID that had no handler or did not
+     * fit in their queue.
+     */
+    public long dropped(int reportId) {
+        return dropped.get(reportId);
+    }
+    
+    /**
+     * The amount of times a handler threw an exception.
+     */
+    public long errors(int reportId) {
+        return errors.get(reportId);
+    }
+    
+    /**
+     * Gets the hid_error() string if the dispatcher stopped because the
+     * device failed, otherwise null.
+     */
+    public String failure() {
+        return failure;
+    }
+    
+    /**
+     * Stops dispatching and waits for the reader thread to finish, the device
+     * is not closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
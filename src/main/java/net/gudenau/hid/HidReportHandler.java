@@ -0,0 +1,17 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Receives input reports from a {@link HidReportDispatcher}.
+ */
+@FunctionalInterface
+public interface HidReportHandler {
+    /**
+     * Handles a single report.
+     *
+     * @param reportId The report ID, the first byte of the report
+     * @param report   The report including the report ID, only valid for the duration of the call
+     */
+    void handle(int reportId, MemorySegment report);
+}
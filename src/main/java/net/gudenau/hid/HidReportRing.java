@@ -0,0 +1,426 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.*;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.gudenau.hid.internal.Natives.*;
+
+/**
+ * A memory mapped ring of input reports that one process writes and any
+ * amount of other processes can read.
+ * <p>
+ * The process that owns a device creates the ring (usually somewhere in
+ * /dev/shm) and publishes every report it reads into it, readers open the
+ * same file and consume it without any locks or system calls. Every reader
+ * has its own cursor, a reader that falls more than a full ring behind skips
+ * ahead to the oldest report that is still available and counts the reports
+ * it lost.
+ */
+public final class HidReportRing implements AutoCloseable {
+    private static final int MAGIC = 0x48494452; // HIDR
+    private static final int VERSION = 1;
+    private static final long CACHE_LINE = 64;
+    
+    static final MemoryLayout HEADER_LAYOUT = MemoryLayout.structLayout(
+        S32.withName("magic"),
+        S32.withName("version"),
+        S32.withName("slot_count"),
+        S32.withName("slot_size"),
+        S32.withName("closed"),
+        MemoryLayout.paddingLayout(352),
+        S64.withName("write_sequence"),
+        MemoryLayout.paddingLayout(448)
+    );
+    
+    static final MemoryLayout SLOT_LAYOUT = MemoryLayout.structLayout(
+        S64.withName("sequence"),
+        S32.withName("length"),
+        MemoryLayout.paddingLayout(32)
+    );
+    
+    private static final VarHandle MAGIC_HANDLE = varHandle(HEADER_LAYOUT, "magic");
+    private static final VarHandle VERSION_HANDLE = varHandle(HEADER_LAYOUT, "version");
+    private static final VarHandle SLOT_COUNT = varHandle(HEADER_LAYOUT, "slot_count");
+    private static final VarHandle SLOT_SIZE = varHandle(HEADER_LAYOUT, "slot_size");
+    private static final VarHandle CLOSED = varHandle(HEADER_LAYOUT, "closed");
+    private static final VarHandle WRITE_SEQUENCE = varHandle(HEADER_LAYOUT, "write_sequence");
+    private static final VarHandle SLOT_SEQUENCE = varHandle(SLOT_LAYOUT, "sequence");
+    private static final VarHandle SLOT_LENGTH = varHandle(SLOT_LAYOUT, "length");
+    
+    private final ResourceScope scope;
+    private final MemorySegment segment;
+    private final boolean writer;
+    private final int slotCount;
+    private final int slotSize;
+    private final long slotStride;
+    
+    // Held for every write into the mapping so close() never unmaps it from under a writer.
+    private final Object writeLock = new Object();
+    private volatile boolean stopping;
+    private long sequence;
+    
+    private HidReportRing(ResourceScope scope, MemorySegment segment, boolean writer, int slotCount, int slotSize) {
+        this.scope = scope;
+        this.segment = segment;
+        this.writer = writer;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.slotStride = stride(slotSize);
+    }
+    
+    /**
+     * Creates a new ring for publishing reports, replacing any existing file.
+     * <p>
+     * The existing file is unlinked instead of truncated, readers that still
+     * have it open keep their old mapping instead of seeing it reset.
+     *
+     * @param path      The file to create, usually in /dev/shm
+     * @param slotCount The amount of reports the ring holds, must be a power of two
+     * @param slotSize  The largest report the ring can hold in bytes
+     * @return The writable ring
+     */
+    public static HidReportRing create(Path path, int slotCount, int slotSize) throws IOException {
+        Objects.requireNonNull(path, "path can't be null");
+        if (slotCount < 1 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slotCount must be a power of two");
+        }
+        if (slotSize < 1) {
+            throw new IllegalArgumentException("slotSize must be positive");
+        }
+        
+        var size = HEADER_LAYOUT.byteSize() + slotCount * stride(slotSize);
+        Files.deleteIfExists(path);
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        
+        var scope = ResourceScope.newSharedScope();
+        try {
+            var segment = MemorySegment.mapFile(path, 0, size, FileChannel.MapMode.READ_WRITE, scope);
+            var ring = new HidReportRing(scope, segment, true, slotCount, slotSize);
+            for (long i = 0; i < slotCount; i++) {
+                SLOT_SEQUENCE.set(ring.slot(i), -1L);
+            }
+            VERSION_HANDLE.set(segment, VERSION);
+            SLOT_COUNT.set(segment, slotCount);
+            SLOT_SIZE.set(segment, slotSize);
+            WRITE_SEQUENCE.set(segment, 0L);
+            MAGIC_HANDLE.setRelease(segment, MAGIC);
+            return ring;
+        } catch (Throwable e) {
+            scope.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Opens an existing ring for reading.
+     *
+     * @param path The file that was passed to {@link #create(Path, int, int)}
+     * @return The read only ring
+     */
+    public static HidReportRing open(Path path) throws IOException {
+        Objects.requireNonNull(path, "path can't be null");
+        
+        var size = Files.size(path);
+        if (size < HEADER_LAYOUT.byteSize()) {
+            throw new IOException("File is too small to be a report ring: " + path);
+        }
+        
+        var scope = ResourceScope.newSharedScope();
+        try {
+            var segment = MemorySegment.mapFile(path, 0, size, FileChannel.MapMode.READ_ONLY, scope);
+            if ((int) MAGIC_HANDLE.getAcquire(segment) != MAGIC) {
+                throw new IOException("Not a report ring: " + path);
+            }
+            if ((int) VERSION_HANDLE.get(segment) != VERSION) {
+                throw new IOException("Unsupported report ring version: " + path);
+            }
+            
+            var slotCount = (int) SLOT_COUNT.get(segment);
+            var slotSize = (int) SLOT_SIZE.get(segment);
+            if (slotCount < 1 || Integer.bitCount(slotCount) != 1 || slotSize < 1 ||
+                size < HEADER_LAYOUT.byteSize() + slotCount * stride(slotSize)) {
+                throw new IOException("Corrupted report ring: " + path);
+            }
+            return new HidReportRing(scope, segment, false, slotCount, slotSize);
+        } catch (Throwable e) {
+            scope.close();
+            throw e;
+        }
+    }
+    
+    private static long stride(int slotSize) {
+        var size = SLOT_LAYOUT.byteSize() + slotSize;
+        return (size + CACHE_LINE - 1) & -CACHE_LINE;
+    }
+    
+    private MemorySegment slot(long sequence) {
+        return segment.asSlice(HEADER_LAYOUT.byteSize() + (sequence & (slotCount - 1)) * slotStride, slotStride);
+    }
+    
+    public int slotCount() {
+        return slotCount;
+    }
+    
+    public int slotSize() {
+        return slotSize;
+    }
+    
+    /**
+     * Gets the amount of reports that have been published so far.
+     */
+    public long writeSequence() {
+        return (long) WRITE_SEQUENCE.getAcquire(segment);
+    }
+    
+    /**
+     * Checks if the writer has closed the ring, no more reports will be
+     * published once this is true.
+     */
+    public boolean closed() {
+        return (int) CLOSED.getAcquire(segment) != 0;
+    }
+    
+    private MemorySegment beginWrite() {
+        if (!writer) {
+            throw new IllegalStateException("Ring was opened read only");
+        }
+        
+        // Invalidate the slot before touching the data so readers that are
+        // still copying the old report notice that it was overwritten.
+        var slot = slot(sequence);
+        SLOT_SEQUENCE.setVolatile(slot, -1L);
+        VarHandle.storeStoreFence();
+        return slot;
+    }
+    
+    private void commitWrite(MemorySegment slot, int length) {
+        SLOT_LENGTH.set(slot, length);
+        SLOT_SEQUENCE.setRelease(slot, sequence);
+        WRITE_SEQUENCE.setRelease(segment, ++sequence);
+    }
+    
+    /**
+     * Publishes a report to all readers.
+     *
+     * @param report The report to publish, can not be larger than the slot size
+     */
+    public void publish(MemorySegment report) {
+        Objects.requireNonNull(report, "report can't be null");
+        if (report.byteSize() > slotSize) {
+            throw new IllegalArgumentException("Report is larger than the slot size");
+        }
+        
+        synchronized (writeLock) {
+            checkOpen();
+            var slot = beginWrite();
+            MemorySegment.copy(report, 0, slot, SLOT_LAYOUT.byteSize(), report.byteSize());
+            commitWrite(slot, (int) report.byteSize());
+        }
+    }
+    
+    /**
+     * Reads a report from a device straight into the ring and publishes it.
+     * <p>
+     * The oldest report in the ring is unavailable to readers while this is
+     * waiting for the device, and {@link #close()} waits for it to return.
+     *
+     * @param device       The device to read from
+     * @param milliseconds timeout in milliseconds or -1 for blocking wait.
+     * @return The result of hid_read_timeout(), the report is only
+     * published if this is positive.
+     */
+    public int publish(HidDevice device, int milliseconds) {
+        Objects.requireNonNull(device, "device can't be null");
+        
+        synchronized (writeLock) {
+            checkOpen();
+            return read(device, milliseconds);
+        }
+    }
+    
+    private int read(HidDevice device, int milliseconds) {
+        var slot = beginWrite();
+        var result = HidApi.hid_read_timeout(device, slot.asSlice(SLOT_LAYOUT.byteSize(), slotSize), milliseconds);
+        if (result > 0) {
+            commitWrite(slot, result);
+        }
+        return result;
+    }
+    
+    private void checkOpen() {
+        if (stopping) {
+            throw new IllegalStateException("Ring is closed");
+        }
+    }
+    
+    /**
+     * Publishes every report read from a device until the device fails, the
+     * ring is closed or the current thread is interrupted.
+     *
+     * @param device The device to read from
+     * @return The amount of reports that were published
+     */
+    public long pump(HidDevice device) {
+        Objects.requireNonNull(device, "device can't be null");
+        
+        var start = sequence;
+        while (!Thread.currentThread().isInterrupted() && !stopping) {
+            synchronized (writeLock) {
+                if (stopping || read(device, 100) < 0) {
+                    break;
+                }
+            }
+        }
+        return sequence - start;
+    }
+    
+    /**
+     * Creates a new reader that starts with the next report that will be
+     * published.
+     */
+    public Reader reader() {
+        return new Reader(writeSequence());
+    }
+    
+    /**
+     * Creates a new reader that starts with the oldest report that is still
+     * in the ring.
+     */
+    public Reader oldestReader() {
+        return new Reader(Math.max(0, writeSequence() - slotCount));
+    }
+    
+    /**
+     * Marks the ring as closed for readers and unmaps it, the file is left
+     * in place. A {@link #pump(HidDevice)} on another thread is stopped and
+     * the mapping is only released once it has finished its current read.
+     */
+    @Override
+    public void close() {
+        stopping = true;
+        synchronized (writeLock) {
+            if (!scope.isAlive()) {
+                return;
+            }
+            if (writer) {
+                CLOSED.setRelease(segment, 1);
+            }
+            scope.close();
+        }
+    }
+    
+    /**
+     * A cursor into a ring, readers are not thread safe but any amount of
+     * them can read from the same ring at once.
+     */
+    public final class Reader {
+        private long cursor;
+        private long lost;
+        
+        private Reader(long cursor) {
+            this.cursor = cursor;
+        }
+        
+        /**
+         * The sequence number of the next report this reader will return.
+         */
+        public long position() {
+            return cursor;
+        }
+        
+        /**
+         * The amount of reports that were overwritten before this reader got
+         * to them.
+         */
+        public long lost() {
+            return lost;
+        }
+        
+        /**
+         * The amount of reports that are waiting to be read.
+         */
+        public long available() {
+            return Math.min(slotCount, Math.max(0, writeSequence() - cursor));
+        }
+        
+        /**
+         * Reads the next report without blocking.
+         *
+         * @param destination The buffer to copy the report into, longer reports are truncated
+         * @return The amount of bytes copied or 0 if there was no report to read
+         */
+        public int read(MemorySegment destination) {
+            while (true) {
+                var available = writeSequence();
+                if (cursor >= available) {
+                    return 0;
+                }
+                if (available - cursor > slotCount) {
+                    lost += available - slotCount - cursor;
+                    cursor = available - slotCount;
+                }
+                
+                var slot = slot(cursor);
+                if ((long) SLOT_SEQUENCE.getAcquire(slot) == cursor) {
+                    var length = (int) SLOT_LENGTH.get(slot);
+                    if (length >= 0 && length <= slotSize) {
+                        var copied = (int) Math.min(length, destination.byteSize());
+                        MemorySegment.copy(slot, SLOT_LAYOUT.byteSize(), destination, 0, copied);
+                        VarHandle.loadLoadFence();
+                        if ((long) SLOT_SEQUENCE.getVolatile(slot) == cursor) {
+                            cursor++;
+                            return copied;
+                        }
+                    }
+                }
+                
+                // The writer lapped this reader while it was reading the slot.
+                lost++;
+                cursor++;
+            }
+        }
+        
+        /**
+         * Reads the next report, waiting for up to the timeout for one to be
+         * published.
+         *
+         * @param destination  The buffer to copy the report into, longer reports are truncated
+         * @param milliseconds timeout in milliseconds or -1 for blocking wait.
+         * @return The amount of bytes copied or 0 if the timeout expired or the ring was closed
+         */
+        public int read(MemorySegment destination, int milliseconds) throws InterruptedException {
+            var deadline = System.nanoTime() + milliseconds * 1_000_000L;
+            var idle = 0;
+            while (true) {
+                var result = read(destination);
+                if (result != 0) {
+                    return result;
+                }
+                if (closed() || (milliseconds >= 0 && System.nanoTime() - deadline >= 0)) {
+                    return 0;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                
+                // Spin briefly for reports that are about to arrive before backing off.
+                if (idle++ < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(50_000);
+                }
+            }
+        }
+    }
+}
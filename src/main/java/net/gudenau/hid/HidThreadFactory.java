@@ -0,0 +1,134 @@
+package net.gudenau.hid;
+
+import net.gudenau.hid.internal.Scheduling;
+
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Creates reader threads that are pinned to a set of CPUs and optionally run
+ * with the SCHED_FIFO real time policy.
+ * <p>
+ * Pass this to anything that takes a {@link ThreadFactory}, like
+ * {@link HidReportDispatcher#start(ThreadFactory)}. The settings are applied
+ * by each thread to itself before it runs its task. When the platform or the
+ * permissions of the process don't allow them the thread runs anyway with
+ * the default scheduling, the outcome is passed to the listener either way.
+ */
+public final class HidThreadFactory implements ThreadFactory {
+    private static final System.Logger LOGGER = System.getLogger(HidThreadFactory.class.getName());
+    
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+    
+    private volatile BitSet affinity;
+    private volatile int fifoPriority;
+    private volatile Consumer<Result> listener = HidThreadFactory::log;
+    
+    /**
+     * The scheduling a thread ended up with.
+     *
+     * @param thread    The name of the thread
+     * @param affinity  The CPUs the thread can run on after pinning, or null if unknown
+     * @param cpu       The CPU the thread was running on when it started, or -1 if unknown
+     * @param pinned    If the requested affinity was applied
+     * @param realtime  If the requested SCHED_FIFO priority was applied
+     * @param error     Why a requested setting could not be applied, or null
+     */
+    public record Result(String thread, BitSet affinity, int cpu, boolean pinned, boolean realtime, String error) {}
+    
+    /**
+     * @param name The prefix of the thread names
+     */
+    public HidThreadFactory(String name) {
+        this.name = Objects.requireNonNull(name, "name can't be null");
+    }
+    
+    /**
+     * Sets the CPUs new threads are pinned to, or null to not pin them.
+     */
+    public HidThreadFactory affinity(BitSet cpus) {
+        affinity = cpus == null ? null : (BitSet) cpus.clone();
+        return this;
+    }
+    
+    public HidThreadFactory affinity(int... cpus) {
+        var set = new BitSet();
+        for (var cpu : cpus) {
+            set.set(cpu);
+        }
+        return affinity(set);
+    }
+    
+    /**
+     * Sets the SCHED_FIFO priority of new threads, between 1 and 99, or 0 to
+     * leave them with the default policy.
+     */
+    public HidThreadFactory fifoPriority(int priority) {
+        if (priority < 0 || priority > 99) {
+            throw new IllegalArgumentException("priority must be between 0 and 99");
+        }
+        fifoPriority = priority;
+        return this;
+    }
+    
+    /**
+     * Sets what gets told how each thread was scheduled, by default failures
+     * are logged.
+     */
+    public HidThreadFactory listener(Consumer<Result> listener) {
+        this.listener = Objects.requireNonNull(listener, "listener can't be null");
+        return this;
+    }
+    
+    @Override
+    public Thread newThread(Runnable runnable) {
+        var affinity = this.affinity;
+        var priority = fifoPriority;
+        var listener = this.listener;
+        
+        var thread = new Thread(() -> {
+            listener.accept(apply(affinity, priority));
+            runnable.run();
+        }, name + '-' + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+    
+    /**
+     * Applies CPU affinity and real time scheduling to the calling thread.
+     *
+     * @param affinity The CPUs to pin to, or null to not pin
+     * @param priority The SCHED_FIFO priority, or 0 for the default policy
+     * @return What was applied
+     */
+    public static Result apply(BitSet affinity, int priority) {
+        String error = null;
+        
+        var pinned = false;
+        if (affinity != null) {
+            error = Scheduling.setAffinity(affinity);
+            pinned = error == null;
+        }
+        
+        var realtime = false;
+        if (priority > 0) {
+            var fifoError = Scheduling.setFifo(priority);
+            realtime = fifoError == null;
+            if (fifoError != null) {
+                error = error == null ? fifoError : error + ", " + fifoError;
+            }
+        }
+        
+        return new Result(Thread.currentThread().getName(), Scheduling.getAffinity(), Scheduling.currentCpu(), pinned, realtime, error);
+    }
+    
+    private static void log(Result result) {
+        if (result.error() != null) {
+            LOGGER.log(System.Logger.Level.WARNING, "Failed to apply scheduling to " + result.thread() + ": " + result.error());
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package net.gudenau.hid;
+
+import jdk.incubator.foreign.MemoryAddress;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reopens the devices from the last run before enumerating.
+ * <p>
+ * The result of every enumeration is cached on disk. On the next start the
+ * cached paths are reopened straight away, then a full enumeration runs in
+ * the background to check the reopened devices against what is actually
+ * attached and to pick up devices that were added, removed or moved to a
+ * different path in the meantime.
+ */
+public final class HidWarmStart {
+    private static final System.Logger LOGGER = System.getLogger(HidWarmStart.class.getName());
+    private static final int MAGIC = 0x48494443; // HIDC
+    // Version 1 caches hold strings from the broken wchar_t decoder, their keys would never match.
+    private static final int VERSION = 2;
+    
+    /**
+     * The cached fields of a {@link HidDeviceInfo}.
+     */
+    public record Entry(
+        String path,
+        int vendorId,
+        int productId,
+        String serialNumber,
+        int releaseNumber,
+        String manufacturer,
+        String product,
+        int usagePage,
+        int usage,
+        int interfaceNumber
+    ) {
+        public Entry {
+            Objects.requireNonNull(path, "path can't be null");
+        }
+        
+        public static Entry of(HidDeviceInfo info) {
+            return new Entry(
+                info.pathString(),
+                info.vendor_id(),
+                info.product_id(),
+                info.serial_numberString(),
+                info.release_number(),
+                info.manufacturer_stringString(),
+                info.product_stringString(),
+                info.usage_page(),
+                info.usage(),
+                info.interface_number()
+            );
+        }
+        
+        /**
+         * A key that identifies the device across restarts and path changes.
+         * Devices without a serial number can only be told apart by their
+         * path. When several devices share a key, like identical units with
+         * the same serial number, reconciliation matches them by path.
+         */
+        public String key() {
+            var identity = serialNumber == null || serialNumber.isEmpty() ? "path=" + path : "serial=" + serialNumber;
+            return "%04x:%04x:%d:%04x:%04x:%s".formatted(vendorId, productId, interfaceNumber, usagePage, usage, identity);
+        }
+    }
+    
+    /**
+     * An open device and the entry it was opened from.
+     */
+    public record Device(Entry entry, HidDevice handle) {}
+    
+    /**
+     * The outcome of checking the reopened devices against a full enumeration.
+     *
+     * @param opened  Devices that were opened during reconciliation, new or moved
+     * @param invalid Reopened devices whose path now belongs to a different
+     *                device or no device at all, the caller should close them
+     * @param added   Devices that were not in the cache
+     * @param removed Cached devices that are no longer attached
+     * @param moved   Cached devices that are attached under a different path,
+     *                with their new path
+     */
+    public record Reconciliation(List<Device> opened, List<Device> invalid, List<Entry> added, List<Entry> removed, List<Entry> moved) {}
+    
+    private final List<Device> devices;
+    private final CompletableFuture<Reconciliation> reconciliation = new CompletableFuture<>();
+    
+    private HidWarmStart(List<Device> devices) {
+        this.devices = devices;
+    }
+    
+    /**
+     * Reopens the cached devices and starts reconciling them in the
+     * background. The cache is rewritten once the enumeration completes.
+     *
+     * @param cache       The cache file, it does not need to exist
+     * @param vendorId    The vendor ID to enumerate, 0 for any
+     * @param productId   The product ID to enumerate, 0 for any
+     * @param parallelism The maximum amount of opens in flight at once
+     * @param timeout     How long to wait for the cached devices to open
+     */
+    public static HidWarmStart start(Path cache, int vendorId, int productId, int parallelism, Duration timeout) {
+        Objects.requireNonNull(cache, "cache can't be null");
+        
+        var cached = load(cache);
+        var devices = open(cached, parallelism, timeout);
+        var warmStart = new HidWarmStart(devices);
+        
+        var thread = new Thread(() -> {
+            try {
+                var current = enumerate(vendorId, productId);
+                var result = reconcile(cached, devices, current, parallelism, timeout);
+                try {
+                    save(cache, current);
+                } catch (IOException e) {
+                    LOGGER.log(System.Logger.Level.WARNING, "Failed to save device cache " + cache, e);
+                }
+                warmStart.reconciliation.complete(result);
+            } catch (Throwable e) {
+                warmStart.reconciliation.completeExceptionally(e);
+            }
+        }, "hid-warm-start");
+        thread.setDaemon(true);
+        thread.start();
+        
+        return warmStart;
+    }
+    
+    /**
+     * The cached devices that were reopened, they are usable right away but
+     * may be invalidated by the {@link #reconciliation()}.
+     */
+    public List<Device> devices() {
+        return devices;
+    }
+    
+    public CompletableFuture<Reconciliation> reconciliation() {
+        return reconciliation;
+    }
+    
+    private static List<Device> open(List<Entry> entries, int parallelism, Duration timeout) {
+        if (entries.isEmpty()) {
+            HidApi.hid_init_once();
+            return List.of();
+        }
+        
+        var results = HidBulkOpen.openPaths(entries.stream().map(Entry::path).toList(), parallelism, timeout);
+        var devices = new ArrayList<Device>();
+        for (int i = 0; i < results.size(); i++) {
+            var result = results.get(i);
+            if (result.success()) {
+                devices.add(new Device(entries.get(i), result.device()));
+            }
+        }
+        return List.copyOf(devices);
+    }
+    
+    private static Reconciliation reconcile(List<Entry> cached, List<Device> devices, List<Entry> current, int parallelism, Duration timeout) {
+        // Only identical units that really report the same serial number end up here, those can
+        // only be told apart by their path.
+        var ambiguous = ambiguousKeys(cached, current);
+        
+        var currentByPath = new HashMap<String, Entry>();
+        var currentByIdentity = new HashMap<String, Entry>();
+        for (var entry : current) {
+            currentByPath.put(entry.path(), entry);
+            currentByIdentity.put(identity(entry, ambiguous), entry);
+        }
+        var cachedIdentities = new HashSet<String>();
+        for (var entry : cached) {
+            cachedIdentities.add(identity(entry, ambiguous));
+        }
+        
+        var invalid = new ArrayList<Device>();
+        var valid = new HashSet<String>();
+        var openPaths = new HashSet<String>();
+        for (var device : devices) {
+            var actual = currentByPath.get(device.entry().path());
+            if (actual != null && actual.key().equals(device.entry().key())) {
+                valid.add(identity(actual, ambiguous));
+                openPaths.add(actual.path());
+            } else {
+                invalid.add(device);
+            }
+        }
+        
+        var added = new ArrayList<Entry>();
+        var removed = new ArrayList<Entry>();
+        var moved = new ArrayList<Entry>();
+        var toOpen = new ArrayList<Entry>();
+        for (var entry : cached) {
+            var identity = identity(entry, ambiguous);
+            var actual = currentByIdentity.get(identity);
+            if (actual == null) {
+                removed.add(entry);
+            } else if (!actual.path().equals(entry.path())) {
+                moved.add(actual);
+                toOpen.add(actual);
+            } else if (!valid.contains(identity)) {
+                // Still at the same path but it failed to open earlier, try again.
+                toOpen.add(actual);
+            }
+        }
+        for (var entry : current) {
+            if (!cachedIdentities.contains(identity(entry, ambiguous))) {
+                added.add(entry);
+                toOpen.add(entry);
+            }
+        }
+        
+        // Never open a path twice, or one that already has a valid handle.
+        toOpen.removeIf((entry) -> !openPaths.add(entry.path()));
+        
+        return new Reconciliation(open(toOpen, parallelism, timeout), invalid, added, removed, moved);
+    }
+    
+    /**
+     * Finds the keys that are shared by more than one device in either list.
+     */
+    private static Set<String> ambiguousKeys(List<Entry> cached, List<Entry> current) {
+        var ambiguous = new HashSet<String>();
+        for (var entries : List.of(cached, current)) {
+            var seen = new HashSet<String>();
+            for (var entry : entries) {
+                if (!seen.add(entry.key())) {
+                    ambiguous.add(entry.key());
+                }
+            }
+        }
+        return ambiguous;
+    }
+    
+    private static String identity(Entry entry, Set<String> ambiguous) {
+        var key = entry.key();
+        return ambiguous.contains(key) ? key + "@path=" + entry.path() : key;
+    }
+    
+    /**
+     * Enumerates the attached devices into cache entries.
+     *
+     * @param vendorId  The vendor ID to enumerate, 0 for any
+     * @param productId The product ID to enumerate, 0 for any
+     */
+    public static List<Entry> enumerate(int vendorId, int productId) {
+        var list = HidApi.hid_enumerate(vendorId, productId);
+        if (list == null) {
+            return List.of();
+        }
+        
+        try {
+            var entries = new ArrayList<Entry>();
+            for (var info = list; info != null; info = info.next()) {
+                if (!info.path().equals(MemoryAddress.NULL)) {
+                    entries.add(Entry.of(info));
+                }
+            }
+            return List.copyOf(entries);
+        } finally {
+            HidApi.hid_free_enumeration(list);
+        }
+    }
+    
+    /**
+     * Reads a cache file, a missing or unreadable cache is treated as empty.
+     */
+    public static List<Entry> load(Path cache) {
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return List.of();
+            }
+            
+            var count = input.readInt();
+            var entries = new ArrayList<Entry>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(
+                    input.readUTF(),
+                    input.readInt(),
+                    input.readInt(),
+                    readString(input),
+                    input.readInt(),
+                    readString(input),
+                    readString(input),
+                    input.readInt(),
+                    input.readInt(),
+                    input.readInt()
+                ));
+            }
+            return List.copyOf(entries);
+        } catch (NoSuchFileException e) {
+            return List.of();
+        } catch (IOException e) {
+            LOGGER.log(System.Logger.Level.WARNING, "Ignoring unreadable device cache " + cache, e);
+            return List.of();
+        }
+    }
+    
+    /**
+     * Writes a cache file, replacing the old one atomically.
+     */
+    public static void save(Path cache, List<Entry> entries) throws IOException {
+        var temp = cache.resolveSibling(cache.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for (var entry : entries) {
+                output.writeUTF(entry.path());
+                output.writeInt(entry.vendorId());
+                output.writeInt(entry.productId());
+                writeString(output, entry.serialNumber());
+                output.writeInt(entry.releaseNumber());
+                writeString(output, entry.manufacturer());
+                writeString(output, entry.product());
+                output.writeInt(entry.usagePage());
+                output.writeInt(entry.usage());
+                output.writeInt(entry.interfaceNumber());
+            }
+        }
+        Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static String readString(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+    
+    private static void writeString(DataOutput output, String string) throws IOException {
+        output.writeBoolean(string != null);
+        if (string != null) {
+            output.writeUTF(string);
+        }
+    }
+}
@@ -5,15 +5,12 @@ import jdk.incubator.foreign.*;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.VarHandle;
 import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.function.BiFunction;
 
 public final class Natives {
     private Natives(){}
     
-    private static final MemorySegment EVERYTHING = MemorySegment.ofAddress(MemoryAddress.NULL, Long.MAX_VALUE, ResourceScope.globalScope());
-    
     public static final MemoryLayout U8 = MemoryLayout.valueLayout(byte.class, ByteOrder.nativeOrder())
         .withBitAlignment(Byte.SIZE);
     public static final MemoryLayout U16 = MemoryLayout.valueLayout(short.class, ByteOrder.nativeOrder())
@@ -37,6 +34,11 @@ public final class Natives {
     public static final MemoryLayout POINTER = MemoryLayout.valueLayout(MemoryAddress.class, ByteOrder.nativeOrder())
         .withBitAlignment(Long.SIZE);
     
+    /**
+     * The size of a wchar_t, 2 bytes on Windows and 4 everywhere else.
+     */
+    public static final int WCHAR_SIZE = System.getProperty("os.name", "").startsWith("Windows") ? 2 : 4;
+    
     public static VarHandle varHandle(MemoryLayout layout, String name) {
         return layout.varHandle(MemoryLayout.PathElement.groupElement(name));
     }
@@ -49,21 +51,34 @@ public final class Natives {
         return address.getUtf8String(0);
     }
     
+    /**
+     * Reads a NUL terminated wchar_t string, UTF-16 on Windows and UTF-32
+     * everywhere else.
+     */
     public static String readWideString(MemoryAddress address) {
         if (address.equals(MemoryAddress.NULL)) {
             return null;
         }
         
-        int length;
-        for(length = 0; length < Integer.MAX_VALUE >> 1; length++) {
-            if(address.getAtIndex(ValueLayout.JAVA_SHORT, length) == 0) {
-                break;
+        var builder = new StringBuilder();
+        if (WCHAR_SIZE == 2) {
+            for (long i = 0; ; i++) {
+                var c = (char) address.getAtIndex(ValueLayout.JAVA_SHORT, i);
+                if (c == 0) {
+                    break;
+                }
+                builder.append(c);
+            }
+        } else {
+            for (long i = 0; ; i++) {
+                var codePoint = address.getAtIndex(ValueLayout.JAVA_INT, i);
+                if (codePoint == 0) {
+                    break;
+                }
+                builder.appendCodePoint(Character.isValidCodePoint(codePoint) ? codePoint : 0xFFFD);
             }
         }
-        
-        var bytes = new byte[length << 1];
-        MemorySegment.copy(EVERYTHING, ValueLayout.JAVA_BYTE, address.toRawLongValue(), bytes, 0, length << 1);
-        return new String(bytes, StandardCharsets.UTF_16);
+        return builder.toString();
     }
     
     public static BiFunction<String, FunctionDescriptor, MethodHandle> load() {
@@ -79,10 +94,37 @@ public final class Natives {
         };
     }
     
+    /**
+     * Looks up a function from the C library, returning null if it does not
+     * exist on this platform.
+     */
+    public static MethodHandle lookupSystem(String name, FunctionDescriptor descriptor) {
+        var linker = CLinker.systemCLinker();
+        return linker.lookup(name)
+            .map((symbol) -> linker.downcallHandle(symbol, descriptor))
+            .orElse(null);
+    }
+    
+    /**
+     * Allocates a NUL terminated wchar_t string, UTF-16 on Windows and UTF-32
+     * everywhere else.
+     */
     public static MemorySegment allocateWideString(SegmentAllocator allocator, String string) {
-        var bytes = string.getBytes(StandardCharsets.UTF_16);
-        var segment = allocator.allocate(bytes.length + 2L, 2);
-        segment.copyFrom(MemorySegment.ofArray(bytes));
+        if (WCHAR_SIZE == 2) {
+            var segment = allocator.allocate((string.length() + 1L) * 2, 2);
+            for (int i = 0; i < string.length(); i++) {
+                segment.setAtIndex(ValueLayout.JAVA_SHORT, i, (short) string.charAt(i));
+            }
+            segment.setAtIndex(ValueLayout.JAVA_SHORT, string.length(), (short) 0);
+            return segment;
+        }
+        
+        var codePoints = string.codePoints().toArray();
+        var segment = allocator.allocate((codePoints.length + 1L) * 4, 4);
+        for (int i = 0; i < codePoints.length; i++) {
+            segment.setAtIndex(ValueLayout.JAVA_INT, i, codePoints[i]);
+        }
+        segment.setAtIndex(ValueLayout.JAVA_INT, codePoints.length, 0);
         return segment;
     }
 }
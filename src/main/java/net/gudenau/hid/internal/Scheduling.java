@@ -0,0 +1,145 @@
+package net.gudenau.hid.internal;
+
+import jdk.incubator.foreign.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.BitSet;
+
+import static net.gudenau.hid.internal.Natives.*;
+
+/**
+ * Bindings for the Linux scheduler calls, every call applies to the calling
+ * thread. On platforms without them every call fails cleanly.
+ */
+public final class Scheduling {
+    private Scheduling(){}
+    
+    private static final int SCHED_FIFO = 1;
+    private static final int CPU_SET_BYTES = 128;
+    
+    private static final MethodHandle SCHED_SETAFFINITY;
+    private static final MethodHandle SCHED_GETAFFINITY;
+    private static final MethodHandle SCHED_SETSCHEDULER;
+    private static final MethodHandle SCHED_GETCPU;
+    private static final MethodHandle ERRNO_LOCATION;
+    
+    static {
+        SCHED_SETAFFINITY = lookupSystem("sched_setaffinity", FunctionDescriptor.of(S32, S32, SIZE, POINTER));
+        SCHED_GETAFFINITY = lookupSystem("sched_getaffinity", FunctionDescriptor.of(S32, S32, SIZE, POINTER));
+        SCHED_SETSCHEDULER = lookupSystem("sched_setscheduler", FunctionDescriptor.of(S32, S32, S32, POINTER));
+        SCHED_GETCPU = lookupSystem("sched_getcpu", FunctionDescriptor.of(S32));
+        ERRNO_LOCATION = lookupSystem("__errno_location", FunctionDescriptor.of(POINTER));
+    }
+    
+    public static boolean supported() {
+        return SCHED_SETAFFINITY != null && SCHED_SETSCHEDULER != null;
+    }
+    
+    /**
+     * Pins the calling thread to a set of CPUs.
+     *
+     * @return null on success, otherwise why it failed
+     */
+    public static String setAffinity(BitSet cpus) {
+        if (SCHED_SETAFFINITY == null) {
+            return "sched_setaffinity is not supported on this platform";
+        }
+        if (cpus.isEmpty() || cpus.length() > CPU_SET_BYTES * Byte.SIZE) {
+            return "CPU set must contain between 1 and " + CPU_SET_BYTES * Byte.SIZE + " CPUs";
+        }
+        
+        try (var scope = ResourceScope.newConfinedScope()) {
+            var set = MemorySegment.allocateNative(CPU_SET_BYTES, Long.BYTES, scope);
+            var words = cpus.toLongArray();
+            for (int i = 0; i < words.length; i++) {
+                set.setAtIndex(ValueLayout.JAVA_LONG, i, words[i]);
+            }
+            
+            var result = (int) SCHED_SETAFFINITY.invokeExact(0, (long) CPU_SET_BYTES, (Addressable) set);
+            return result == 0 ? null : "sched_setaffinity failed: " + errno();
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to execute sched_setaffinity", e);
+        }
+    }
+    
+    /**
+     * Gets the CPUs the calling thread may run on.
+     *
+     * @return The CPUs or null if they could not be read
+     */
+    public static BitSet getAffinity() {
+        if (SCHED_GETAFFINITY == null) {
+            return null;
+        }
+        
+        try (var scope = ResourceScope.newConfinedScope()) {
+            var set = MemorySegment.allocateNative(CPU_SET_BYTES, Long.BYTES, scope);
+            var result = (int) SCHED_GETAFFINITY.invokeExact(0, (long) CPU_SET_BYTES, (Addressable) set);
+            if (result != 0) {
+                return null;
+            }
+            
+            var words = new long[CPU_SET_BYTES / Long.BYTES];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = set.getAtIndex(ValueLayout.JAVA_LONG, i);
+            }
+            return BitSet.valueOf(words);
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to execute sched_getaffinity", e);
+        }
+    }
+    
+    /**
+     * Switches the calling thread to the SCHED_FIFO real time policy.
+     *
+     * @return null on success, otherwise why it failed
+     */
+    public static String setFifo(int priority) {
+        if (SCHED_SETSCHEDULER == null) {
+            return "sched_setscheduler is not supported on this platform";
+        }
+        
+        try (var scope = ResourceScope.newConfinedScope()) {
+            var param = MemorySegment.allocateNative(S32, scope);
+            param.set(ValueLayout.JAVA_INT, 0, priority);
+            var result = (int) SCHED_SETSCHEDULER.invokeExact(0, SCHED_FIFO, (Addressable) param);
+            return result == 0 ? null : "sched_setscheduler failed: " + errno();
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to execute sched_setscheduler", e);
+        }
+    }
+    
+    /**
+     * Gets the CPU the calling thread is running on, or -1 if unknown.
+     */
+    public static int currentCpu() {
+        if (SCHED_GETCPU == null) {
+            return -1;
+        }
+        
+        try {
+            return (int) SCHED_GETCPU.invokeExact();
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to execute sched_getcpu", e);
+        }
+    }
+    
+    /**
+     * Best effort errno of the last call, the JVM is free to clobber it
+     * between the downcall and this read.
+     */
+    private static String errno() throws Throwable {
+        if (ERRNO_LOCATION == null) {
+            return "unknown error";
+        }
+        
+        var errno = ((MemoryAddress) ERRNO_LOCATION.invokeExact()).get(ValueLayout.JAVA_INT, 0);
+        return switch (errno) {
+            case 1 -> "EPERM";
+            case 3 -> "ESRCH";
+            case 14 -> "EFAULT";
+            case 22 -> "EINVAL";
+            default -> "errno " + errno;
+        };
+    }
+}
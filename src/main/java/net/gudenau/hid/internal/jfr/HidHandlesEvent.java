@@ -0,0 +1,20 @@
+package net.gudenau.hid.internal.jfr;
+
+import jdk.jfr.*;
+
+@Name("net.gudenau.hid.Handles")
+@Label("HID Handles")
+@Category("HID")
+@Description("The amount of tracked native handles that are currently open")
+@Period("1 s")
+@StackTrace(false)
+public final class HidHandlesEvent extends Event {
+    @Label("Open Devices")
+    public int devices;
+    
+    @Label("Open Enumerations")
+    public int enumerations;
+    
+    @Label("Total Tracked")
+    public long tracked;
+}
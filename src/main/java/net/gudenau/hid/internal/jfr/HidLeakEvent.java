@@ -0,0 +1,29 @@
+package net.gudenau.hid.internal.jfr;
+
+import jdk.jfr.*;
+
+@Name("net.gudenau.hid.Leak")
+@Label("HID Leak")
+@Category("HID")
+@Description("A native handle that was still open when leaks were reported")
+@StackTrace(false)
+public final class HidLeakEvent extends Event {
+    @Label("Kind")
+    public String kind;
+    
+    @Label("Address")
+    @MemoryAddress
+    public long address;
+    
+    @Label("Thread")
+    @Description("The thread that allocated the handle")
+    public String thread;
+    
+    @Label("Age")
+    @Timespan(Timespan.MILLISECONDS)
+    public long age;
+    
+    @Label("Allocation Site")
+    @Description("The sampled allocation stack trace, if any")
+    public String site;
+}
@@ -0,0 +1,46 @@
+package net.gudenau.hid.report;
+
+import java.lang.annotation.*;
+
+/**
+ * Describes where a record component lives inside of a {@link HidReport}.
+ * <p>
+ * Supported component types are boolean, byte, short, int and long.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.RECORD_COMPONENT)
+public @interface HidField {
+    /**
+     * The offset of the field from the start of the buffer in bits.
+     */
+    int offset();
+    
+    /**
+     * The width of the field in bits, booleans must be a single bit.
+     */
+    int width();
+    
+    /**
+     * If the field should be sign extended when it is read.
+     */
+    boolean signed() default false;
+    
+    /**
+     * The byte order of the field.
+     */
+    Endian endian() default Endian.LITTLE;
+    
+    enum Endian {
+        /**
+         * Least significant byte first, bits are counted from the least
+         * significant bit of each byte. This is the order used by HID.
+         */
+        LITTLE,
+        /**
+         * Most significant byte first, bits are counted from the most
+         * significant bit of each byte.
+         */
+        BIG,
+    }
+}
@@ -0,0 +1,37 @@
+package net.gudenau.hid.report;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a record as a HID report layout.
+ * <p>
+ * The report processor generates a {@code <Name>Codec} class next to the
+ * annotated record that reads and writes the record straight from the
+ * buffers passed to hid_read() and hid_write(), see {@link #id()} for
+ * devices that don't use numbered reports. Every component of the record
+ * must be annotated with {@link HidField}.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface HidReport {
+    /**
+     * The report ID of this report or -1 if the device does not use
+     * numbered reports.
+     * <p>
+     * When set the ID is stored in the first byte of the buffer, so field
+     * offsets should start at bit 8.
+     * <p>
+     * Layouts with -1 match the buffers hid_read() returns for devices
+     * without numbered reports and are meant for input reports only.
+     * hid_write() always treats the first byte as the report ID, so output
+     * reports for those devices should use ID 0 instead, which reserves the
+     * first byte and writes a 0 into it.
+     */
+    int id() default -1;
+    
+    /**
+     * The size of the report in bytes, including the report ID.
+     */
+    int size();
+}